@@ -0,0 +1,70 @@
+package com.almond.config;
+
+import com.almond.mapper.BlogMapper;
+import com.almond.mapper.ShopMapper;
+import com.almond.mapper.UserMapper;
+import com.almond.utils.BloomFilters;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * 启动时从数据库批量构建布隆过滤器
+ * 只查询id列,按id分批读取,避免一次把整张表加载到内存
+ */
+@Slf4j
+@Order(1)
+@Component
+public class BloomFilterInitializer implements ApplicationRunner {
+
+    private static final int BATCH_SIZE = 5000;
+
+    @Resource
+    private BloomFilters bloomFilters;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long start = System.currentTimeMillis();
+        long shops = loadIds(BloomFilters.SHOP, shopMapper);
+        long blogs = loadIds(BloomFilters.BLOG, blogMapper);
+        long users = loadIds(BloomFilters.USER, userMapper);
+        bloomFilters.completeBuild();
+        log.info("布隆过滤器构建完成,shop:{},blog:{},user:{},耗时{}ms",
+                shops, blogs, users, System.currentTimeMillis() - start);
+    }
+
+    private <T> long loadIds(String name, BaseMapper<T> mapper) {
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            //select id from table where id > lastId order by id limit BATCH_SIZE
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                    .select("id").gt("id", lastId).orderByAsc("id").last("limit " + BATCH_SIZE));
+            if (ids.isEmpty()) {
+                return total;
+            }
+            bloomFilters.putAllLocal(name, ids);
+            total += ids.size();
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+            if (ids.size() < BATCH_SIZE) {
+                return total;
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.almond.config;
+
+import com.almond.utils.CacheCodec;
+import com.almond.utils.JsonCacheCodec;
+import com.almond.utils.SmileCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+@Configuration
+public class CacheConfig {
+
+    /**
+     * 缓存值编解码器 json:兼容已有的json字符串数据 smile:二进制格式
+     */
+    @Bean
+    public CacheCodec cacheCodec(@Value("${almond.cache.codec:json}") String codec) {
+        if ("smile".equalsIgnoreCase(codec)) {
+            return new SmileCacheCodec();
+        }
+        return new JsonCacheCodec();
+    }
+
+    /**
+     * key为字符串,value为原始字节的redisTemplate,供CacheClient存取编码后的缓存值
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> bytesRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashKeySerializer(RedisSerializer.string());
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+}
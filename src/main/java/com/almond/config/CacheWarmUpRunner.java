@@ -0,0 +1,217 @@
+package com.almond.config;
+
+import cn.hutool.json.JSONUtil;
+import com.almond.entity.SeckillVoucher;
+import com.almond.entity.Shop;
+import com.almond.entity.ShopType;
+import com.almond.mapper.SeckillVoucherMapper;
+import com.almond.mapper.ShopMapper;
+import com.almond.mapper.ShopTypeMapper;
+import com.almond.utils.CacheClient;
+import com.almond.utils.SeckillStocks;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.almond.utils.RedisConstants.*;
+
+/**
+ * 启动预热:分页读取店铺、店铺类型、秒杀券,用管道批量写入店铺缓存、店铺地理坐标以及秒杀库存
+ * ApplicationRunner全部执行完之前,spring boot的readiness一直是REFUSING_TRAFFIC,
+ * 负载均衡按/actuator/health/readiness摘流,未预热的节点不会接收流量
+ */
+@Slf4j
+@Order(2)
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    //逻辑过期时间随机延长的比例,避免预热的数据同时过期
+    private static final double EXPIRE_JITTER_RATIO = 0.1;
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private ShopTypeMapper shopTypeMapper;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${almond.warm-up.enabled:true}")
+    private boolean enabled;
+
+    @Value("${almond.warm-up.page-size:1000}")
+    private int pageSize;
+
+    @Value("${almond.seckill.stock-shards:1}")
+    private int stockShards;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        AvailabilityChangeEvent.publish(applicationContext, ReadinessState.REFUSING_TRAFFIC);
+        long start = System.currentTimeMillis();
+        warmUpShops();
+        warmUpShopTypes();
+        warmUpSeckillStock();
+        log.info("缓存预热完成,总耗时{}ms", System.currentTimeMillis() - start);
+        //之后由spring boot在所有runner结束后切换为ACCEPTING_TRAFFIC
+    }
+
+    /**
+     * 店铺缓存(逻辑过期)以及shop:geo:{typeId}
+     */
+    private void warmUpShops() {
+        Stage stage = new Stage("shop");
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .gt("id", lastId).orderByAsc("id").last("limit " + pageSize));
+            if (shops.isEmpty()) {
+                break;
+            }
+            Map<String, Shop> values = new LinkedHashMap<>();
+            shops.forEach(shop -> values.put(CACHE_SHOP_KEY + shop.getId(), shop));
+            cacheClient.setWithLogicalExpireBatch(values, CACHE_SHOP_TTL, TimeUnit.MINUTES, EXPIRE_JITTER_RATIO);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Shop shop : shops) {
+                    if (shop.getX() == null || shop.getY() == null) {
+                        continue;
+                    }
+                    conn.geoAdd(SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()),
+                            shop.getId().toString());
+                }
+                return null;
+            });
+            stage.page(shops.size());
+            lastId = shops.get(shops.size() - 1).getId();
+            if (shops.size() < pageSize) {
+                break;
+            }
+        }
+        stage.finish();
+    }
+
+    /**
+     * 店铺类型列表,格式与ShopTypeServiceImpl一致
+     */
+    private void warmUpShopTypes() {
+        Stage stage = new Stage("shopType");
+        List<ShopType> typeList = shopTypeMapper.selectList(new QueryWrapper<ShopType>().orderByAsc("sort"));
+        stringRedisTemplate.opsForValue().set(CACHE_SHOPTYPE_KEY, JSONUtil.toJsonStr(typeList),
+                CACHE_SHOPTYPE_TTL, TimeUnit.HOURS);
+        stage.page(typeList.size());
+        stage.finish();
+    }
+
+    //不分片的库存key和分片数key都不存在时才写入库存,KEYS[1]:库存key KEYS[2]:分片数key KEYS[3..]:要写入的key ARGV:对应的值
+    private static final String SET_STOCK_IF_ABSENT =
+            "if redis.call('exists', KEYS[1]) == 1 or redis.call('exists', KEYS[2]) == 1 then return 0 end " +
+            "for i = 3, #KEYS do redis.call('set', KEYS[i], ARGV[i - 2]) end " +
+            "return 1";
+
+    /**
+     * 未结束的秒杀券库存与时间窗口,库存只在redis中不存在时写入,不能覆盖正在进行的秒杀已扣减的库存
+     * 已经以另一种方式(分片或不分片)存放的库存也不能再写入,否则两份库存会重复售卖
+     */
+    private void warmUpSeckillStock() {
+        Stage stage = new Stage("seckillStock");
+        long lastId = 0;
+        while (true) {
+            List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(new QueryWrapper<SeckillVoucher>()
+                    .gt("voucher_id", lastId).gt("end_time", LocalDateTime.now())
+                    .orderByAsc("voucher_id").last("limit " + pageSize));
+            if (vouchers.isEmpty()) {
+                break;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (SeckillVoucher voucher : vouchers) {
+                    Map<String, String> entries = SeckillStocks.stockEntries(
+                            voucher.getVoucherId(), voucher.getStock(), stockShards);
+                    List<String> keysAndArgs = new ArrayList<>();
+                    keysAndArgs.add(SECKILL_STOCK_KEY + voucher.getVoucherId());
+                    keysAndArgs.add(SECKILL_SHARDS_KEY + voucher.getVoucherId());
+                    keysAndArgs.addAll(entries.keySet());
+                    keysAndArgs.addAll(entries.values());
+                    conn.eval(SET_STOCK_IF_ABSENT, ReturnType.INTEGER, entries.size() + 2,
+                            keysAndArgs.toArray(new String[0]));
+                    //时间窗口以数据库为准,直接覆盖
+                    conn.hMSet(SECKILL_META_KEY + voucher.getVoucherId(),
+                            SeckillStocks.saleMeta(voucher.getBeginTime(), voucher.getEndTime()));
+                }
+                return null;
+            });
+            stage.page(vouchers.size());
+            lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+            if (vouchers.size() < pageSize) {
+                break;
+            }
+        }
+        stage.finish();
+    }
+
+    /**
+     * 记录一个预热阶段的进度、吞吐量和耗时
+     */
+    private class Stage {
+        private final String name;
+        private final long start = System.currentTimeMillis();
+        private long rows;
+        private int pages;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void page(int size) {
+            rows += size;
+            pages++;
+            meterRegistry.counter("warmup.rows", "stage", name).increment(size);
+            log.info("预热{}:第{}页,累计{}条,已耗时{}ms", name, pages, rows, System.currentTimeMillis() - start);
+        }
+
+        void finish() {
+            long elapsed = System.currentTimeMillis() - start;
+            meterRegistry.timer("warmup.duration", "stage", name).record(elapsed, TimeUnit.MILLISECONDS);
+            log.info("预热{}完成,共{}条,耗时{}ms,{}条/秒", name, rows, elapsed,
+                    elapsed == 0 ? rows : rows * 1000 / elapsed);
+        }
+    }
+}
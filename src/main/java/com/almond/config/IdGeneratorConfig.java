@@ -0,0 +1,33 @@
+package com.almond.config;
+
+import com.almond.utils.IdGenerator;
+import com.almond.utils.RedisCircuitBreaker;
+import com.almond.utils.RedisIdWorker;
+import com.almond.utils.SnowflakeIdGenerator;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+@Configuration
+public class IdGeneratorConfig {
+
+    /**
+     * 按key前缀选择id生成器,almond.id.snowflake.prefixes中的前缀使用本地雪花算法,其余使用redis自增
+     * 雪花算法没有有效的worker id时改用redis自增,redis访问经过熔断器
+     */
+    @Bean
+    @Primary
+    public IdGenerator idGenerator(RedisIdWorker redisIdWorker, SnowflakeIdGenerator snowflakeIdGenerator,
+                                   RedisCircuitBreaker redisCircuitBreaker) {
+        return keyPrefix -> {
+            if (snowflakeIdGenerator.supports(keyPrefix) && snowflakeIdGenerator.isAvailable()) {
+                try {
+                    return snowflakeIdGenerator.nextId(keyPrefix);
+                } catch (IllegalStateException e) {
+                    //租约刚刚丢失
+                }
+            }
+            return redisCircuitBreaker.call(() -> redisIdWorker.nextId(keyPrefix));
+        };
+    }
+}
@@ -1,13 +1,19 @@
 package com.almond.config;
 
+import cn.hutool.core.util.StrUtil;
+import com.almond.utils.AdminInterceptor;
 import com.almond.utils.LoginInterceptor;
+import com.almond.utils.RedisCircuitBreaker;
 import com.almond.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -15,21 +21,31 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    //管理员用户id,逗号分隔,为空时没有人可以访问管理接口
+    @Value("${almond.admin.user-ids:}")
+    private String adminUserIds;
+
     /**
      * 注册拦截器
      * @param registry
      */
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, redisCircuitBreaker)).order(0);
         registry.addInterceptor(new LoginInterceptor()).excludePathPatterns(
                 "/shop/**",
-                "/voucher/**",
+                "/voucher/list/**",
                 "/shop-type/**",
                 "/upload/**",
                 "/blog/hot",
                 "/user/code",
                 "/user/login"
         ).order(1);
+        Set<Long> admins = StrUtil.split(adminUserIds, ',', true, true).stream()
+                .map(Long::valueOf).collect(Collectors.toSet());
+        registry.addInterceptor(new AdminInterceptor(admins)).addPathPatterns("/admin/**").order(2);
     }
 }
@@ -0,0 +1,59 @@
+package com.almond.config;
+
+import com.almond.utils.BloomFilters;
+import com.almond.utils.CacheClient;
+import com.almond.utils.SeckillStockLeases;
+import com.almond.utils.SoldOutRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.almond.utils.RedisConstants.BLOOM_FILTER_CHANNEL;
+import static com.almond.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.almond.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.almond.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+@Configuration
+public class RedisListenerConfig {
+
+    /**
+     * redis发布订阅的监听容器,集中注册各频道的监听器
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CacheClient cacheClient,
+                                                                       BloomFilters bloomFilters,
+                                                                       SoldOutRegistry soldOutRegistry,
+                                                                       SeckillStockLeases seckillStockLeases) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //其他节点更新数据后,清除本节点的一级缓存
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.onInvalidationMessage(
+                        new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //其他节点新增数据后,更新本节点布隆过滤器的本地镜像
+        container.addMessageListener(
+                (message, pattern) -> bloomFilters.onAddMessage(
+                        new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(BLOOM_FILTER_CHANNEL));
+        //秒杀券售罄后,本节点直接拒绝请求
+        container.addMessageListener(
+                (message, pattern) -> soldOutRegistry.onSoldOutMessage(
+                        new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        //补充库存后,清除售罄标记,租约模式下允许立即重新预留
+        container.addMessageListener(
+                (message, pattern) -> {
+                    String body = new String(message.getBody(), StandardCharsets.UTF_8);
+                    soldOutRegistry.onRestockMessage(body);
+                    seckillStockLeases.onRestockMessage(body);
+                },
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+        return container;
+    }
+}
@@ -0,0 +1,86 @@
+package com.almond.controller;
+
+
+import com.almond.dto.Result;
+import com.almond.service.IVoucherOrderService;
+import com.almond.service.IVoucherService;
+import com.almond.utils.SeckillReconciler;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  管理接口,只有管理员可以访问,见AdminInterceptor
+ * </p>
+ *
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    /**
+     * 补充秒杀券库存
+     * @param id 优惠券id
+     * @param amount 补充的数量
+     * @return 无
+     */
+    @PutMapping("voucher/seckill/{id}/stock")
+    public Result restockSeckillVoucher(@PathVariable("id") Long id, @RequestParam("amount") Integer amount) {
+        voucherService.restockSeckillVoucher(id, amount);
+        return Result.ok();
+    }
+
+    /**
+     * 单独设置秒杀券的准入控制,为空的参数恢复默认配置
+     * @param id 优惠券id
+     * @param rate 每个节点每秒放行的请求数,0表示不限制
+     * @param burst 每个节点允许的瞬时突发请求数
+     * @param multiple 每个时间窗口全局放行的请求数与剩余库存之比,0表示不限制
+     * @return 无
+     */
+    @PutMapping("voucher/seckill/{id}/admission")
+    public Result updateSeckillAdmission(@PathVariable("id") Long id,
+                                         @RequestParam(value = "rate", required = false) Long rate,
+                                         @RequestParam(value = "burst", required = false) Long burst,
+                                         @RequestParam(value = "multiple", required = false) Long multiple) {
+        voucherService.updateSeckillAdmission(id, rate, burst, multiple);
+        return Result.ok();
+    }
+
+    /**
+     * 查询最近一次对账发现的库存差异
+     * @return 各秒杀券的对账结果
+     */
+    @GetMapping("voucher/seckill/reconcile")
+    public Result queryReconcileReports() {
+        return Result.ok(seckillReconciler.getReports());
+    }
+
+    /**
+     * 查看死信stream中处理失败的订单消息
+     * @param count 最多返回的条数
+     */
+    @GetMapping("voucher-order/dlq")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * 把死信消息重新写入订单stream
+     * @param id 死信stream中的消息id
+     */
+    @PostMapping("voucher-order/dlq/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") String id) {
+        return voucherOrderService.replayDeadLetter(id);
+    }
+}
@@ -9,6 +9,7 @@ import com.almond.entity.User;
 import com.almond.entity.UserInfo;
 import com.almond.service.IUserInfoService;
 import com.almond.service.IUserService;
+import com.almond.utils.BloomFilters;
 import com.almond.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -33,6 +34,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private BloomFilters bloomFilters;
+
     /**
      * 发送手机验证码
      */
@@ -85,6 +89,10 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId){
+        //布隆过滤器判断一定不存在的用户,不再查询数据库
+        if(!bloomFilters.mightContain(BloomFilters.USER, userId)){
+            return Result.ok();
+        }
         User user = userService.getById(userId);
         if(user==null) {
             return Result.ok();
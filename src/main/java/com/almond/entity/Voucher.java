@@ -89,6 +89,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 库存分片数,超热门的秒杀券把库存分散到多个key,为空时使用默认配置
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
     /**
      * 创建时间
      */
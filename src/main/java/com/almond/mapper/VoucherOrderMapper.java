@@ -2,6 +2,9 @@ package com.almond.mapper;
 
 import com.almond.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -11,4 +14,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 批量插入订单,与已有订单的主键或(user_id, voucher_id)重复的行跳过
+     * @return 实际插入的行数
+     */
+    int insertBatchSkipDuplicate(@Param("orders") List<VoucherOrder> orders);
 }
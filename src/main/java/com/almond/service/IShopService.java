@@ -14,6 +14,8 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result updateShop(Shop shop);
 
     Result queryShopByTypeWithGeo(Integer typeId, Integer current, Double x, Double y);
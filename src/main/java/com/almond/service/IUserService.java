@@ -2,10 +2,12 @@ package com.almond.service;
 
 import com.almond.dto.LoginFormDTO;
 import com.almond.dto.Result;
+import com.almond.dto.UserDTO;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.almond.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -17,4 +19,6 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    List<UserDTO> queryUserDTOByIds(List<Long> ids);
 }
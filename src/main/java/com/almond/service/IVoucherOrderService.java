@@ -4,6 +4,8 @@ import com.almond.dto.Result;
 import com.almond.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -15,4 +17,10 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrders(Long voucherId, List<VoucherOrder> orders);
+
+    Result queryDeadLetters(Integer count);
+
+    Result replayDeadLetter(String dlqId);
 }
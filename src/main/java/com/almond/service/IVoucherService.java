@@ -15,4 +15,8 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    void restockSeckillVoucher(Long voucherId, Integer amount);
+
+    void updateSeckillAdmission(Long voucherId, Long rate, Long burst, Long multiple);
 }
@@ -13,6 +13,7 @@ import com.almond.mapper.BlogMapper;
 import com.almond.service.IBlogService;
 import com.almond.service.IFollowService;
 import com.almond.service.IUserService;
+import com.almond.utils.BloomFilters;
 import com.almond.utils.SystemConstants;
 import com.almond.utils.UserHolder;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -49,6 +50,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private BloomFilters bloomFilters;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -57,16 +61,17 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            queryBlogUser(blog);
-            this.queryBlogUser(blog);
-        });
+        // 批量查询用户
+        queryBlogUsers(records);
         return Result.ok(records);
     }
 
     @Override
     public Result queryById(Long id) {
+        //布隆过滤器判断一定不存在的博客,不再查询数据库
+        if(!bloomFilters.mightContain(BloomFilters.BLOG, id)){
+            return Result.fail("笔记不存在");
+        }
         //查询blog
         Blog blog = getById(id);
         if(blog == null){
@@ -146,6 +151,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setUserId(userId);
         // 保存探店博文
         save(blog);
+        bloomFilters.add(BloomFilters.BLOG, blog.getId());
         // feed流推模式,将发表的blog推送给关注的用户
         // 1.获取粉丝列表
         List<Follow> follows = followService.query().eq("follow_user_id", userId).list();
@@ -191,9 +197,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //根据idList查询出博客列表
         String idStrs = StrUtil.join(",", idList);
         List<Blog> blogs = query().in("id", idList).last("order by field(id," + idStrs + ")").list();
+        //批量查看并设置博客作者
+        queryBlogUsers(blogs);
         for (Blog blog : blogs) {
-            //查看并设置博客作者
-            queryBlogUser(blog);
             // 查询当前blog是否点赞,并设置属性
             isBlogLiked(blog);
         }
@@ -206,10 +212,23 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     private void queryBlogUser(Blog blog) {
-        //查询blog关联的用户
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        queryBlogUsers(Collections.singletonList(blog));
+    }
+
+    //批量查询blog关联的用户,一次缓存批量查询代替每篇博客一次数据库查询
+    private void queryBlogUsers(List<Blog> blogs) {
+        if(blogs.isEmpty()){
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = userService.queryUserDTOByIds(userIds);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if(user == null){
+                continue;
+            }
+            blogs.get(i).setName(user.getNickName());
+            blogs.get(i).setIcon(user.getIcon());
+        }
     }
 }
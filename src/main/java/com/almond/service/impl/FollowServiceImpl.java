@@ -18,6 +18,7 @@ import javax.annotation.Resource;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -85,8 +86,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         }
         //如果有交集,从用户id得到UserDTO链表
         List<Long> idList = common.stream().map(Long::valueOf).collect(Collectors.toList());
-        List<UserDTO> userDTOList = iUserService.listByIds(idList).stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+        List<UserDTO> userDTOList = iUserService.queryUserDTOByIds(idList).stream()
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
         return Result.ok(userDTOList);
     }
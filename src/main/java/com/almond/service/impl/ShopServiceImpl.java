@@ -1,11 +1,13 @@
 package com.almond.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import com.almond.dto.Result;
 import com.almond.entity.Shop;
 import com.almond.mapper.ShopMapper;
 import com.almond.service.IShopService;
+import com.almond.utils.BloomFilters;
 import com.almond.utils.CacheClient;
 import com.almond.utils.RedisData;
 import com.almond.utils.SystemConstants;
@@ -25,6 +27,8 @@ import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.almond.utils.RedisConstants.*;
 
@@ -43,6 +47,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private BloomFilters bloomFilters;
+
     @Override
     public Result queryById(Long id) {
         //解决缓存击穿问题
@@ -58,6 +65,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 新店铺加入布隆过滤器,否则会被当作不存在的id拦截
+        bloomFilters.add(BloomFilters.SHOP, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 在一个事务中实现对商店数据库的更新,以及缓存的删除
      * @return
@@ -72,8 +88,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //2.更新数据库
         updateById(shop);
-        //3.删除旧的缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+id);
+        //3.删除旧的缓存,并通知各节点清除本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY+id);
+        cacheClient.delete(CACHE_SHOP_BATCH_KEY+id);
         return Result.ok();
     }
 
@@ -117,13 +134,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             ids.add(Long.valueOf(shopIdStr));
             distanceMap.put(shopIdStr,distance);
         });
-        //根据id查询shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        shops.forEach(shop -> {
-            shop.setDistance(distanceMap.get(shop.getId().toString())
-                    .getValue());
-        });
+        //根据id批量查询shop,结果与ids顺序一致
+        List<Shop> shops = new ArrayList<>(ids.size());
+        List<Shop> cached = cacheClient.queryBatchWithPassThrough(CACHE_SHOP_BATCH_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        for (Shop shop : cached) {
+            if (shop == null) {
+                continue;
+            }
+            //缓存中的对象会被多个请求共享,复制后再设置本次请求的距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(copy.getId().toString()).getValue());
+            shops.add(copy);
+        }
         //返回
         return Result.ok(shops);
     }
@@ -252,13 +276,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //        } catch (InterruptedException e) {
 //            e.printStackTrace();
 //        }
-        // 从数据库获取数据
+        // 从数据库获取数据,记录耗时用于提前刷新
+        long start = System.currentTimeMillis();
         Shop shop = getById(id);
-        // 因为我们需要逻辑过期时间,这个值包含在一个类中
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireTime)); //过期时刻=当前时间+过期时间
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 因为我们需要逻辑过期时间,交给cacheClient包装,同时通知各节点清除本地缓存
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireTime, TimeUnit.SECONDS,
+                System.currentTimeMillis() - start);
     }
 //
 //    /**
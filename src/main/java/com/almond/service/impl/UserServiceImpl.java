@@ -7,6 +7,7 @@ import cn.hutool.core.util.RandomUtil;
 import com.almond.dto.LoginFormDTO;
 import com.almond.dto.Result;
 import com.almond.dto.UserDTO;
+import com.almond.utils.BloomFilters;
 import com.almond.utils.CacheClient;
 import com.almond.utils.RegexUtils;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -22,8 +23,11 @@ import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.almond.utils.RedisConstants.*;
 import static com.almond.utils.SystemConstants.*;
@@ -41,6 +45,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private BloomFilters bloomFilters;
+
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //1.校验手机号是否合法
@@ -90,12 +100,26 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    /**
+     * 批量查询用户公开信息,走缓存,未命中的用户一次IN查询
+     * @return 与ids顺序一一对应,不存在的用户对应位置为null
+     */
+    @Override
+    public List<UserDTO> queryUserDTOByIds(List<Long> ids) {
+        return cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toMap(UserDTO::getId, Function.identity())),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     private User createUserWithPhone(String phone) {
         User user = new User();
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX+RandomUtil.randomString(10));
         //在数据库保存user
         save(user);
+        bloomFilters.add(BloomFilters.USER, user.getId());
         return user;
     }
 }
@@ -1,6 +1,8 @@
 package com.almond.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
 import com.almond.config.RedissonConfig;
 import com.almond.dto.Result;
 import com.almond.dto.UserDTO;
@@ -11,33 +13,67 @@ import com.almond.mapper.VoucherOrderMapper;
 import com.almond.service.ISeckillVoucherService;
 import com.almond.service.IVoucherOrderService;
 import com.almond.service.IVoucherService;
-import com.almond.utils.RedisIdWorker;
+import com.almond.utils.RedisCircuitBreaker;
+import com.almond.utils.SeckillAdmission;
+import com.almond.utils.IdGenerator;
+import com.almond.utils.SeckillStockLeases;
+import com.almond.utils.SeckillStocks;
+import com.almond.utils.SoldOutRegistry;
+import com.almond.utils.StreamPartitionAssigner;
 import com.almond.utils.SimpleRedisLock;
 import com.almond.utils.UserHolder;
 import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.RedisStreamCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
-import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.almond.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.almond.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.almond.utils.RedisConstants.SECKILL_ORDER_STREAM;
 
 /**
  * <p>
@@ -53,42 +89,411 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService iSeckillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private MeterRegistry meterRegistry;
 
 
 
 
-    //任务线程
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //消费者线程池,每个线程是消费者组中的一个独立消费者
+    private ExecutorService seckillOrderExecutor;
+    private final List<VoucherOrderHandler> handlers = new ArrayList<>();
+    //分区模式下本实例持有的分区 -> 该分区唯一的消费者
+    private final Map<Integer, VoucherOrderHandler> partitionHandlers = new ConcurrentHashMap<>();
+    private StreamPartitionAssigner partitionAssigner;
+    //不再写入新订单的stream -> 本实例的排空消费者,消息全部确认后退出
+    private final Map<String, VoucherOrderHandler> drainHandlers = new ConcurrentHashMap<>();
+    private ExecutorService drainExecutor;
+    //消费者名称前缀,进程(pid@host)
+    private String consumerInstance;
+    private volatile boolean running = true;
     //代理对象
     private IVoucherOrderService proxy;
+    //消息写入stream(消息id中的时间戳)到订单事务提交的耗时
+    private Timer orderLatency;
+    //各stream的pending消息数和未投递消息数,由sampleOrderStreams定时刷新
+    private final Map<String, AtomicLong> pendingGauges = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> lagGauges = new ConcurrentHashMap<>();
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    //消费者数量,默认等于cpu核数,只用于不分区的stream.orders
+    @Value("${almond.seckill.order.consumers:0}")
+    private int consumers;
+
+    //订单stream分区数,大于1时按用户写入stream.orders.{n},每个分区只由一个实例的一个线程消费
+    @Value("${almond.seckill.order.partitions:1}")
+    private int partitions;
+
+    //分区租约时长,实例宕机后经过该时长其分区由其他实例接管
+    @Value("${almond.seckill.order.partition-lease:15s}")
+    private Duration partitionLease;
+
+    //其他消费者的pending消息空闲超过该时间,认为该消费者已经宕机,由本节点认领
+    @Value("${almond.seckill.order.claim-idle:60s}")
+    private Duration claimIdle;
+
+    //每次XREADGROUP读取的最大消息数,大于1时按优惠券分组批量落库,等于1时逐条处理
+    @Value("${almond.seckill.order.batch-size:100}")
+    private int batchSize;
+
+    //订单消息最多投递次数,仍失败则移入死信stream
+    @Value("${almond.seckill.order.max-attempts:5}")
+    private int maxAttempts;
+
+    //失败消息第一次重试前的等待时间,之后每次翻倍,最多retry-backoff-max
+    @Value("${almond.seckill.order.retry-backoff:1s}")
+    private Duration retryBackoff;
+
+    @Value("${almond.seckill.order.retry-backoff-max:60s}")
+    private Duration retryBackoffMax;
+
+    //容器启动完成后开始消费,消息在此之前留在stream中不会丢失
+    @EventListener(ApplicationReadyEvent.class)
+    public void startConsumers(){
+        //消费者线程中无法通过AopContext获取代理对象,启动时从容器中获取
+        proxy = applicationContext.getBean(IVoucherOrderService.class);
+        orderLatency = Timer.builder("seckill.order.latency")
+                .description("订单消息从写入stream到落库提交的耗时")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(retryBackoffMax.multipliedBy(maxAttempts))
+                .register(meterRegistry);
+        //消费者名称 = 进程(pid@host) + 线程序号,保证各节点、各线程唯一
+        String instance = ManagementFactory.getRuntimeMXBean().getName();
+        consumerInstance = instance;
+        AtomicInteger threadIndex = new AtomicInteger();
+        drainExecutor = Executors.newCachedThreadPool(
+                r -> new Thread(r, "seckill-order-drain-" + threadIndex.incrementAndGet()));
+        if (partitions > 1) {
+            startPartitionConsumers(instance, threadIndex);
+        } else {
+            startStreamConsumers(instance, threadIndex);
+        }
+        drainRetiredStreams();
+    }
+
+    /**
+     * 不分区:多个消费者线程在同一个消费者组中消费stream.orders
+     */
+    private void startStreamConsumers(String instance, AtomicInteger threadIndex) {
+        createGroupIfAbsent(SECKILL_ORDER_STREAM);
+        int size = consumers > 0 ? consumers : Runtime.getRuntime().availableProcessors();
+        seckillOrderExecutor = Executors.newFixedThreadPool(size,
+                r -> new Thread(r, "seckill-order-" + threadIndex.incrementAndGet()));
+        for (int i = 0; i < size; i++) {
+            VoucherOrderHandler handler = new VoucherOrderHandler(SECKILL_ORDER_STREAM, instance + "-c" + i, -1, false);
+            handlers.add(handler);
+            seckillOrderExecutor.submit(handler);
+        }
+        log.info("启动{}个订单消费者", size);
+    }
+
+    /**
+     * 分区模式:分区的数量决定并行度,由StreamPartitionAssigner在存活的实例间平均分配,
+     * 每个分区固定使用消费者p{n},新的持有者直接接手上一个持有者的pending list,同一用户的订单始终串行处理
+     */
+    private void startPartitionConsumers(String instance, AtomicInteger threadIndex) {
+        seckillOrderExecutor = Executors.newCachedThreadPool(
+                r -> new Thread(r, "seckill-order-" + threadIndex.incrementAndGet()));
+        partitionAssigner = new StreamPartitionAssigner(stringRedisTemplate, SECKILL_ORDER_STREAM, partitions,
+                partitionLease.toMillis(), instance + "-" + UUID.randomUUID().toString(true),
+                new StreamPartitionAssigner.Listener() {
+                    @Override
+                    public void onAssigned(int partition, String token) {
+                        String stream = SECKILL_ORDER_STREAM + "." + partition;
+                        createGroupIfAbsent(stream);
+                        VoucherOrderHandler handler = new VoucherOrderHandler(stream, "p" + partition, partition, false);
+                        handler.leaseToken = token;
+                        partitionHandlers.put(partition, handler);
+                        seckillOrderExecutor.submit(handler);
+                    }
+
+                    @Override
+                    public void onRevoked(int partition) {
+                        VoucherOrderHandler handler = partitionHandlers.remove(partition);
+                        if (handler != null) {
+                            handler.active = false;
+                        }
+                    }
+                });
+        rebalanceOrderPartitions();
+        log.info("订单stream共{}个分区,本实例持有{}", partitions, partitionAssigner.getOwned());
+    }
+
+    /**
+     * 分区模式的心跳,实例加入或退出时重新均衡分区
+     */
+    @Scheduled(fixedDelayString = "${almond.seckill.order.rebalance-interval:5000}")
+    public void rebalanceOrderPartitions() {
+        if (partitionAssigner == null || !running) {
+            return;
+        }
+        try {
+            partitionAssigner.rebalance();
+        } catch (Exception e) {
+            log.warn("订单stream分区均衡失败", e);
+        }
+    }
+
+    /**
+     * 切换分区数后新订单只写入当前的stream,之前写入的订单已经扣减了redis库存、记录了购买用户,必须继续落库:
+     * 分区模式下的stream.orders,以及编号不小于分区数的stream.orders.{n},还有未投递或未确认的消息时启动排空消费者,
+     * 全部确认后消费者退出;滚动发布期间旧版本的实例仍按原来的分区数写入,之后再有消息时重新启动
+     */
+    @Scheduled(fixedDelayString = "${almond.seckill.order.drain-interval:30000}")
+    public void drainRetiredStreams() {
+        if (drainExecutor == null || !running) {
+            return;
+        }
+        List<String> current = currentStreams();
+        for (String stream : allOrderStreams()) {
+            if (current.contains(stream) || drainHandlers.containsKey(stream)) {
+                continue;
+            }
+            try {
+                if (!hasUnfinished(stream)) {
+                    continue;
+                }
+                createGroupIfAbsent(stream);
+                VoucherOrderHandler handler = new VoucherOrderHandler(stream, consumerInstance + "-drain", -1, true);
+                if (drainHandlers.putIfAbsent(stream, handler) == null) {
+                    log.info("{}不再写入新订单,启动排空消费者", stream);
+                    drainExecutor.submit(handler);
+                }
+            } catch (Exception e) {
+                log.warn("检查{}是否需要排空失败", stream, e);
+            }
+        }
+    }
+
+    /**
+     * @return stream中是否还有没有投递给消费者组或没有确认的消息
+     */
+    private boolean hasUnfinished(String stream) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+            return false;
+        }
+        //消费者组还没有创建时全部消息都未投递
+        String lastDelivered = "0-0";
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            if (SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                if (group.pendingCount() > 0) {
+                    return true;
+                }
+                lastDelivered = group.lastDeliveredId();
+            }
+        }
+        List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(stream,
+                Range.of(Range.Bound.exclusive(lastDelivered), Range.Bound.unbounded()), Limit.limit().count(1));
+        return undelivered != null && !undelivered.isEmpty();
+    }
+
+    //当前写入新订单的stream
+    private List<String> currentStreams() {
+        if (partitions <= 1) {
+            return Collections.singletonList(SECKILL_ORDER_STREAM);
+        }
+        List<String> streams = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            streams.add(SECKILL_ORDER_STREAM + "." + i);
+        }
+        return streams;
+    }
+
+    //当前的stream以及redis中切换分区数之前留下的stream
+    private List<String> allOrderStreams() {
+        return SeckillStocks.orderStreams(partitions, scanKeys(SECKILL_ORDER_STREAM + ".*"));
+    }
+
+    private List<String> scanKeys(String pattern) {
+        return stringRedisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            List<String> keys = new ArrayList<>();
+            try (Cursor<byte[]> cursor = connection.scan(
+                    ScanOptions.scanOptions().match(pattern).count(1000).build())) {
+                cursor.forEachRemaining(key -> keys.add(new String(key, StandardCharsets.UTF_8)));
+            }
+            return keys;
+        });
+    }
+
+    /**
+     * 用户所在的订单stream,分区模式下同一用户的订单总是写入同一个分区
+     */
+    private String orderStream(Long userId) {
+        if (partitions > 1) {
+            return SECKILL_ORDER_STREAM + "." + SeckillStocks.userHash(userId) % partitions;
+        }
+        return SECKILL_ORDER_STREAM;
+    }
+
+    @PreDestroy
+    public void stopConsumers() throws InterruptedException {
+        running = false;
+        if (partitionAssigner != null) {
+            //消费者退出时删除分区租约,其他实例可以立即接管
+            partitionAssigner.leave();
+        }
+        if (drainExecutor != null) {
+            drainExecutor.shutdown();
+        }
+        if (seckillOrderExecutor != null) {
+            seckillOrderExecutor.shutdown();
+            //消费者最多阻塞2秒读取,等待其处理完手头的订单
+            seckillOrderExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        if (drainExecutor != null) {
+            drainExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 创建消费者组(stream不存在时一并创建),已存在时忽略
+     */
+    private void createGroupIfAbsent(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.streamCommands().xGroupCreate(
+                    stream.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP 消费者组已存在
+            log.debug("消费者组已存在:{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 定时认领宕机消费者遗留的pending消息,按顺序分给本节点的消费者,由其在pending处理流程中完成下单
+     * 排空中的stream上已经没有原来的消费者,其pending消息全部由排空消费者认领
+     */
+    @Scheduled(fixedDelayString = "${almond.seckill.order.claim-interval:30000}")
+    public void claimIdlePending() {
+        if (!handlers.isEmpty()) {
+            claimIdlePending(SECKILL_ORDER_STREAM, handlers);
+        }
+        drainHandlers.forEach((stream, handler) -> claimIdlePending(stream, Collections.singletonList(handler)));
+    }
 
-    @PostConstruct //在spring创建了类之后就开始执行任务(因为请求随时都可能来)
-    private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    private void claimIdlePending(String stream, List<VoucherOrderHandler> targets) {
+        try {
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                    stream, SECKILL_ORDER_GROUP, Range.unbounded(), 100);
+            Set<String> own = targets.stream().map(handler -> handler.consumerName).collect(Collectors.toSet());
+            Map<VoucherOrderHandler, List<RecordId>> claims = new HashMap<>();
+            int next = 0;
+            for (PendingMessage message : pending) {
+                //本节点消费者自己的消息由其按退避时间重试,认领会重置空闲时间,反而推迟重试
+                if (own.contains(message.getConsumerName())
+                        || message.getElapsedTimeSinceLastDelivery().compareTo(claimIdle) < 0) {
+                    continue;
+                }
+                VoucherOrderHandler handler = targets.get(next++ % targets.size());
+                claims.computeIfAbsent(handler, h -> new ArrayList<>()).add(message.getId());
+            }
+            claims.forEach((handler, ids) -> {
+                //XCLAIM带min-idle,多个节点同时认领时只有一个能成功
+                List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                        connection.streamCommands().xClaimJustId(stream.getBytes(StandardCharsets.UTF_8),
+                                SECKILL_ORDER_GROUP, handler.consumerName,
+                                RedisStreamCommands.XClaimOptions.minIdle(claimIdle).ids(ids)));
+                if (claimed != null && !claimed.isEmpty()) {
+                    log.info("消费者{}认领了{}条空闲订单消息", handler.consumerName, claimed.size());
+                    handler.pendingClaimed = true;
+                }
+            });
+        } catch (Exception e) {
+            log.warn("认领{}的pending消息失败", stream, e);
+        }
     }
 
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders"; //redis中消息队列key
+        final String queueName; //redis中消息队列key
+        final String consumerName;
+        //分区模式下消费的分区,-1表示不分区
+        final int partition;
+        //分区租约token,退出时只释放自己这一次认领的租约
+        volatile String leaseToken;
+        //认领到其他消费者的消息后置为true,由本消费者处理pending list
+        volatile boolean pendingClaimed = true;
+        //分区被回收后置为false,处理完手头的消息后退出
+        volatile boolean active = true;
+        //排空不再写入新订单的stream,消息全部确认后退出
+        final boolean drain;
+        //下一次检查pending list的时间
+        long nextPendingCheck;
+        //本消费者落库的订单数,按时间求速率即为吞吐量
+        final Counter consumed;
+
+        VoucherOrderHandler(String queueName, String consumerName, int partition, boolean drain) {
+            this.queueName = queueName;
+            this.consumerName = consumerName;
+            this.partition = partition;
+            this.drain = drain;
+            //消费者名称中的pid@host每次启动都不同,标签只取c{n}/p{n}
+            this.consumed = meterRegistry.counter("seckill.order.consumed", "stream", queueName,
+                    "consumer", consumerName.substring(consumerName.lastIndexOf('-') + 1));
+        }
+
         @Override
         public void run() {
-            while (true){
+            try {
+                consume();
+            } finally {
+                if (drain) {
+                    drainHandlers.remove(queueName, this);
+                }
+                if (partition >= 0) {
+                    try {
+                        partitionAssigner.release(partition, leaseToken);
+                    } catch (Exception e) {
+                        //租约到期后自动释放
+                        log.warn("释放订单stream分区{}失败", partition, e);
+                    }
+                }
+            }
+        }
+
+        private void consume() {
+            while (running && active){
                 try {
-                    //1.获取队列中的订单信息 消息队列创建命令xgroup create stream.orders g1 0 MKSTREAM
+                    //启动时、认领消息后以及每隔retry-backoff,处理自己pending list中到达重试时间的消息
+                    if(pendingClaimed || System.currentTimeMillis() >= nextPendingCheck){
+                        if(!holdsLease()){
+                            return;
+                        }
+                        pendingClaimed = false;
+                        handlePendingList();
+                    }
+                    //1.获取队列中的订单信息
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(Math.max(batchSize, 1)).block(Duration.ofSeconds(2)),
                             StreamOffset.create(queueName, ReadOffset.lastConsumed())
                     );
                     //2.判断消息是否获取成功
                     if(list==null || list.isEmpty()){
-                        //2.1 失败,则继续循环
+                        //2.1 失败,则继续循环;排空的stream已经没有未完成的消息时退出
+                        if(drain && !hasUnfinished(queueName)){
+                            log.info("{}中的订单已全部落库,排空消费者退出", queueName);
+                            return;
+                        }
+                        continue;
+                    }
+                    //已读取的消息留在p{n}的pending list中,由接管分区的实例处理
+                    if(!holdsLease()){
+                        return;
+                    }
+                    if(batchSize > 1){
+                        handleVoucherOrderBatch(this, list);
                         continue;
                     }
                     //转换为bean
@@ -97,48 +502,262 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     VoucherOrder order = BeanUtil.fillBeanWithMap(map, new VoucherOrder(), true);
                     //3.成功,完成下单
                     handleVoucherOrder(order);
+                    committed(this, record.getId());
                     //4.ack确认消息 record.getId()是消息id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1",record.getId());
+                    stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP,record.getId());
                 } catch (Exception e) {
+                    //失败的消息留在pending list中,按退避时间重试,不在这里反复处理
+                    meterRegistry.counter("seckill.order.failure", "reason", "error").increment();
                     log.info("处理订单时出现异常",e);
-                    handlePendingList();
+                    pause(retryBackoff.toMillis());
                 }
             }
         }
-        //处理异常消息
+
+        /**
+         * 分区模式下检查租约是否仍属于本消费者,租约已被其他实例认领时停止,保证每个分区只有一个消费者在处理
+         */
+        private boolean holdsLease() {
+            if (partition < 0 || partitionAssigner.holds(partition, leaseToken)) {
+                return true;
+            }
+            log.warn("订单stream分区{}的租约已不属于本消费者,停止消费", partition);
+            active = false;
+            return false;
+        }
+
+        /**
+         * 处理pending list中到达重试时间的消息,第n次投递失败后等待retry-backoff * 2^(n-1)再重试,
+         * 投递max-attempts次仍失败的消息移入死信stream,未到重试时间的消息跳过,不阻塞新消息的消费
+         */
         private void handlePendingList() {
-            while (true){
+            nextPendingCheck = System.currentTimeMillis() + retryBackoff.toMillis();
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(queueName,
+                    Consumer.from(SECKILL_ORDER_GROUP, consumerName), Range.unbounded(), 100);
+            for (PendingMessage message : pending) {
+                if (!running || !active) {
+                    return;
+                }
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() < backoffMillis(message.getTotalDeliveryCount())) {
+                    continue;
+                }
                 try {
-                    //1.获取pendingList异常链表中的信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    //2.判断异常消息是否获取成功
-                    if(list==null || list.isEmpty()){
-                        //2.1 没有异常消息,跳出循环
-                        break;
-                    }
-                    //转换为bean
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> map = record.getValue();
-                    VoucherOrder order = BeanUtil.fillBeanWithMap(map, new VoucherOrder(), true);
-                    //3.成功,完成下单
-                    handleVoucherOrder(order);
-                    //4.ack确认消息 record.getId()是消息id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1",record.getId());
+                    retryPending(message);
                 } catch (Exception e) {
-                    log.info("处理异常列表时出现异常",e);
-                    //休眠后循环处理异常消息
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException interruptedException) {
-                        interruptedException.printStackTrace();
-                    }
+                    log.warn("重试订单消息失败,id:{}", message.getIdAsString(), e);
                 }
             }
         }
+
+        private void retryPending(PendingMessage message) {
+            //XCLAIM给自己:读取消息内容,同时增加投递次数、重置空闲时间
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(queueName.getBytes(StandardCharsets.UTF_8),
+                            SECKILL_ORDER_GROUP, consumerName,
+                            RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO).ids(message.getId())));
+            if (claimed == null || claimed.isEmpty()) {
+                //消息已被删除,只能确认
+                stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP, message.getId());
+                return;
+            }
+            Map<String, String> fields = new LinkedHashMap<>();
+            claimed.get(0).getValue().forEach((k, v) ->
+                    fields.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            long deliveries = message.getTotalDeliveryCount() + 1;
+            try {
+                handleVoucherOrder(BeanUtil.fillBeanWithMap(fields, new VoucherOrder(), true));
+                committed(this, message.getId());
+                stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP, message.getId());
+            } catch (Exception e) {
+                meterRegistry.counter("seckill.order.failure", "reason", "error").increment();
+                if (deliveries >= maxAttempts) {
+                    deadLetter(queueName, message.getId(), fields, deliveries, e);
+                } else {
+                    log.warn("订单消息第{}次处理失败,{}ms后重试,id:{}", deliveries, backoffMillis(deliveries),
+                            message.getIdAsString(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 订单事务已提交(或因库存不足回滚),记录端到端耗时和消费者吞吐量
+     * 起点取消息id中的时间戳,即seckill.lua执行XADD时redis的时间,重试的消息包含等待重试的时间
+     */
+    private void committed(VoucherOrderHandler handler, RecordId id) {
+        orderLatency.record(Math.max(System.currentTimeMillis() - id.getTimestamp(), 0), TimeUnit.MILLISECONDS);
+        handler.consumed.increment();
+    }
+
+    //第deliveries次投递失败后,距离下一次重试的等待时间
+    private long backoffMillis(long deliveries) {
+        long backoff = retryBackoff.toMillis() << Math.min(Math.max(deliveries - 1, 0), 20);
+        return Math.min(backoff, retryBackoffMax.toMillis());
+    }
+
+    private void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 移入死信stream并确认原消息,保留原字段以及来源、投递次数和失败原因
+     */
+    private void deadLetter(String stream, RecordId id, Map<String, String> fields, long deliveries, Exception e) {
+        Map<String, String> entry = new LinkedHashMap<>(fields);
+        entry.put("source", stream);
+        entry.put("sourceId", id.getValue());
+        entry.put("deliveries", String.valueOf(deliveries));
+        entry.put("reason", StrUtil.maxLength(String.valueOf(e), 500));
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, entry);
+        stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, id);
+        meterRegistry.counter("seckill.order.failure", "reason", "dead-letter").increment();
+        log.error("订单消息处理{}次仍失败,已移入死信stream,id:{},内容:{}", deliveries, id, fields, e);
+    }
+
+    @Override
+    public Result queryDeadLetters(Integer count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                SECKILL_ORDER_DLQ, Range.unbounded(), Limit.limit().count(count == null ? 20 : count));
+        List<Map<Object, Object>> entries = new ArrayList<>();
+        if (records != null) {
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<Object, Object> entry = new LinkedHashMap<>();
+                entry.put("dlqId", record.getId().getValue());
+                entry.putAll(record.getValue());
+                entries.add(entry);
+            }
+        }
+        return Result.ok(entries);
+    }
+
+    @Override
+    public Result replayDeadLetter(String dlqId) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                SECKILL_ORDER_DLQ, Range.closed(dlqId, dlqId));
+        if (records == null || records.isEmpty()) {
+            return Result.fail("死信消息不存在");
+        }
+        Map<Object, Object> fields = records.get(0).getValue();
+        Object userId = fields.get("userId");
+        if (!StrUtil.isNumeric(StrUtil.toStringOrNull(userId))) {
+            return Result.fail("死信消息缺少用户id,无法重放");
+        }
+        //按当前的分区数重新写入用户所在的stream,投递次数从头计算
+        Map<String, String> order = new LinkedHashMap<>();
+        order.put("userId", userId.toString());
+        order.put("voucherId", String.valueOf(fields.get("voucherId")));
+        order.put("id", String.valueOf(fields.get("id")));
+        RecordId recordId = stringRedisTemplate.opsForStream().add(orderStream(Long.valueOf(userId.toString())), order);
+        stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_DLQ, dlqId);
+        log.info("重放死信消息{},新消息id:{}", dlqId, recordId);
+        return Result.ok(recordId == null ? null : recordId.getValue());
+    }
+
+    //仅当pending中最早的消息之前的部分才能删除,KEYS[1]:stream ARGV[1]:保留的最小消息id
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT = new DefaultRedisScript<>(
+            "return redis.call('xtrim', KEYS[1], 'MINID', '~', ARGV[1])", Long.class);
+
+    /**
+     * 定时裁剪订单stream,删除所有消费者组都已确认的消息(XTRIM MINID,需要redis 6.2)
+     * 保留的最小id = 各消费者组最后投递的id与pending中最早的id中最小的一个,未消费和未确认的消息不会被删除
+     */
+    @Scheduled(fixedDelayString = "${almond.seckill.order.trim-interval:60000}")
+    public void trimOrderStreams() {
+        for (String stream : allOrderStreams()) {
+            try {
+                trimOrderStream(stream);
+            } catch (Exception e) {
+                log.debug("裁剪{}失败:{}", stream, e.getMessage());
+            }
+        }
+    }
+
+    private void trimOrderStream(String stream) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+            return;
+        }
+        RecordId minId = null;
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            RecordId candidate = RecordId.of(group.lastDeliveredId());
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, group.groupName());
+            if (summary != null && summary.getTotalPendingMessages() > 0) {
+                candidate = min(candidate, RecordId.of(summary.minMessageId()));
+            }
+            minId = minId == null ? candidate : min(minId, candidate);
+        }
+        if (minId == null) {
+            return;
+        }
+        Long trimmed = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(stream), minId.getValue());
+        if (trimmed != null && trimmed > 0) {
+            log.debug("裁剪{}共{}条已确认的消息", stream, trimmed);
+        }
+    }
+
+    //redis 7之前XINFO GROUPS没有lag字段,用XRANGE数出最后投递的id之后的消息,最多数到这么多条
+    private static final int LAG_SCAN_LIMIT = 1000;
+
+    /**
+     * 定时采样各订单stream的积压:pending为已投递未确认的消息数,lag为还没有投递给消费者组的消息数
+     */
+    @Scheduled(fixedDelayString = "${almond.seckill.order.metrics-interval:5000}")
+    public void sampleOrderStreams() {
+        //不扫描redis,排空结束的stream不再采样
+        List<String> streams = SeckillStocks.orderStreams(partitions, drainHandlers.keySet());
+        pendingGauges.keySet().stream().filter(stream -> !streams.contains(stream)).forEach(stream -> {
+            pendingGauges.get(stream).set(0);
+            lagGauges.getOrDefault(stream, new AtomicLong()).set(0);
+        });
+        for (String stream : streams) {
+            try {
+                sampleOrderStream(stream);
+            } catch (Exception e) {
+                log.debug("采样{}失败:{}", stream, e.getMessage());
+            }
+        }
+    }
+
+    private void sampleOrderStream(String stream) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+            return;
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            if (!SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                continue;
+            }
+            Object lag = group.getRaw().get("lag");
+            long lagCount;
+            if (lag instanceof Number) {
+                lagCount = ((Number) lag).longValue();
+            } else {
+                List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(stream,
+                        Range.of(Range.Bound.exclusive(group.lastDeliveredId()), Range.Bound.unbounded()),
+                        Limit.limit().count(LAG_SCAN_LIMIT));
+                lagCount = undelivered == null ? 0 : undelivered.size();
+            }
+            gauge(pendingGauges, "seckill.order.pending", stream).set(group.pendingCount());
+            gauge(lagGauges, "seckill.order.lag", stream).set(lagCount);
+        }
+    }
+
+    //gauge只弱引用数值对象,由map持有
+    private AtomicLong gauge(Map<String, AtomicLong> gauges, String name, String stream) {
+        return gauges.computeIfAbsent(stream, s -> meterRegistry.gauge(name, Tags.of("stream", s), new AtomicLong()));
+    }
+
+    private static RecordId min(RecordId a, RecordId b) {
+        if (a.getTimestamp() != b.getTimestamp()) {
+            return a.getTimestamp() < b.getTimestamp() ? a : b;
+        }
+        return a.getSequence() <= b.getSequence() ? a : b;
     }
 //    //将下单更新到数据库的任务
 //    //装有订单信息的阻塞队列
@@ -160,24 +779,52 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
-    private void handleVoucherOrder(VoucherOrder order) {
-        //使用redisson获取分布式锁
-        //不能再从UserHolder获取用户id,因为线程不一样,threadLocal不可用
-        Long userId = order.getUserId();
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean hasLock = lock.tryLock();
-        if(!hasLock){
-            log.error("不能重复下单");
-            return;
+    /**
+     * 批量下单:按优惠券分组,每组一次扣减库存+一次批量插入,最后一次XACK确认落库成功的消息
+     * 某组落库失败时退回逐条处理,单条失败的消息不确认,留在pending list中按退避时间重试
+     */
+    private void handleVoucherOrderBatch(VoucherOrderHandler handler, List<MapRecord<String, Object, Object>> records) {
+        Map<Long, List<VoucherOrder>> ordersByVoucher = new LinkedHashMap<>();
+        Map<Long, List<RecordId>> idsByVoucher = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder order = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            ordersByVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
+            idsByVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(record.getId());
         }
-        try {
-            //无法获取代理对象,因为这里已经是另一个线程,因此将其放在成员变量中
-            proxy.createVoucherOrder(order);
-        } finally {
-            lock.unlock();
+        List<RecordId> done = new ArrayList<>();
+        ordersByVoucher.forEach((voucherId, orders) -> {
+            List<RecordId> ids = idsByVoucher.get(voucherId);
+            try {
+                proxy.createVoucherOrders(voucherId, orders);
+                ids.forEach(id -> committed(handler, id));
+                done.addAll(ids);
+                return;
+            } catch (Exception e) {
+                log.warn("批量创建订单失败,逐条处理,voucherId:{},数量:{}", voucherId, orders.size(), e);
+            }
+            for (int i = 0; i < orders.size(); i++) {
+                try {
+                    handleVoucherOrder(orders.get(i));
+                    committed(handler, ids.get(i));
+                    done.add(ids.get(i));
+                } catch (Exception e) {
+                    meterRegistry.counter("seckill.order.failure", "reason", "error").increment();
+                    log.warn("创建订单失败,留在pending list中重试,id:{}", ids.get(i), e);
+                }
+            }
+        });
+        if (!done.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(handler.queueName, SECKILL_ORDER_GROUP,
+                    done.toArray(new RecordId[0]));
         }
     }
 
+    private void handleVoucherOrder(VoucherOrder order) {
+        //一人一单由lua脚本和数据库唯一索引保证,不再需要分布式锁
+        //无法获取代理对象,因为这里已经是另一个线程,因此将其放在成员变量中
+        proxy.createVoucherOrder(order);
+    }
+
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static{
@@ -186,27 +833,139 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
+    //租约模式下单,库存已在本地扣减
+    private static final DefaultRedisScript<Long> SECKILL_LEASED_SCRIPT;
+    static{
+        SECKILL_LEASED_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_LEASED_SCRIPT.setLocation(new ClassPathResource("seckill_leased.lua"));
+        SECKILL_LEASED_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    //已购买用户的记录方式 bitmap:按用户id分段的位图 set:集合
+    @Value("${almond.seckill.buyer-mode:bitmap}")
+    private String buyerMode;
+
     public Result seckillVoucher(Long voucherId) {
         Long userId = UserHolder.getUser().getId();
-        //生成订单id
-        long orderId = redisIdWorker.nextId("order");
-        //执行lua脚本,lua负责判断用户是否有购买资格,库存是否足够,并将购买消息放入消息队列
-        Long res = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
-        );
-        int result = res.intValue();
+        //已售罄直接返回,不访问redis
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
+        //超出准入限制的请求快速失败,不生成订单id、不执行秒杀脚本
+        if(!seckillAdmission.tryAcquire(voucherId)){
+            return Result.fail("系统繁忙,请稍后再试");
+        }
+        if(seckillStockLeases.isEnabled()){
+            return seckillVoucherWithLease(voucherId, userId);
+        }
+        long orderId;
+        Long res;
+        try {
+            //生成订单id,order前缀默认在本地生成,不访问redis
+            orderId = idGenerator.nextId("order");
+            //执行lua脚本,lua负责判断用户是否有购买资格,库存是否足够,并将购买消息放入消息队列
+            res = redisCircuitBreaker.call(() -> stringRedisTemplate.execute(SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    String.valueOf(SeckillStocks.userHash(userId)),
+                    String.valueOf(soldOutRegistry.soldOutShardMask(voucherId)),
+                    buyerMode,
+                    orderStream(userId)
+            ));
+        } catch (RedisCircuitBreaker.RedisUnavailableException e) {
+            //redis不可用时快速失败,库存和一人一单都依赖redis,不能降级到数据库
+            return Result.fail("系统繁忙,请稍后再试");
+        }
+        //低3位是结果码,其余位是本次发现售罄的分片
+        long drained = res >>> 3;
+        if(drained != 0){
+            soldOutRegistry.markShardsSoldOut(voucherId, drained);
+        }
+        int result = (int) (res & 7);
+        if(result == 1){
+            //可能错过了售罄广播,本节点自己标记
+            soldOutRegistry.markSoldOut(voucherId);
+        }
         if( result != 0){
-            return Result.fail(res == 1 ? "库存不足":"不能重复购买");
+            return Result.fail(failMessage(result));
         }
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         //返回订单信息
         return Result.ok(orderId);
     }
 
+    /**
+     * 租约模式:先在本地扣减库存,库存不足直接返回,不访问redis
+     * 扣减成功后由redis判断一人一单并写入订单消息,重复下单时把库存退回本地
+     */
+    private Result seckillVoucherWithLease(Long voucherId, Long userId) {
+        //先生成订单id,生成失败时还没有扣减本地库存
+        long orderId;
+        try {
+            orderId = idGenerator.nextId("order");
+        } catch (RuntimeException e) {
+            log.warn("生成订单id失败,voucherId:{}", voucherId, e);
+            return Result.fail("系统繁忙,请稍后再试");
+        }
+        try {
+            if(!seckillStockLeases.tryAcquire(voucherId)){
+                return Result.fail("库存不足");
+            }
+        } catch (Exception e) {
+            log.warn("预留秒杀库存失败,voucherId:{}", voucherId, e);
+            return Result.fail("系统繁忙,请稍后再试");
+        }
+        Long res;
+        try {
+            res = redisCircuitBreaker.call(() -> stringRedisTemplate.execute(SECKILL_LEASED_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    buyerMode,
+                    orderStream(userId)
+            ));
+        } catch (RuntimeException e) {
+            //任何异常都把库存退回本地,否则这个库存既不会卖出也不会归还
+            seckillStockLeases.release(voucherId);
+            if (!(e instanceof RedisCircuitBreaker.RedisUnavailableException)) {
+                log.warn("执行秒杀脚本失败,voucherId:{}", voucherId, e);
+            }
+            return Result.fail("系统繁忙,请稍后再试");
+        }
+        if(res != 0){
+            seckillStockLeases.release(voucherId);
+            return Result.fail(failMessage(res.intValue()));
+        }
+        return Result.ok(orderId);
+    }
+
+    /**
+     * 秒杀脚本的结果码 1:库存不足 2:重复购买 3:尚未开始 4:已经结束
+     */
+    private static String failMessage(int result) {
+        switch (result) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复购买";
+            case 3:
+                return "秒杀尚未开始";
+            default:
+                return "秒杀已经结束";
+        }
+    }
+
 //    public Result seckillVoucher(Long voucherId) {
 //        Long userId = UserHolder.getUser().getId();
 //        Long res = stringRedisTemplate.execute(SECKILL_SCRIPT,
@@ -273,26 +1032,71 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        //查询当前用户订单
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        if(count>0){
+        //1.插入订单,与已有订单的(user_id, voucher_id)重复时跳过,重复投递的消息不会重复扣减库存
+        if(insertOrders(Collections.singletonList(voucherOrder)) == 0){
+            //原先由分布式锁拦截的重复下单,现在由唯一索引拦截
+            meterRegistry.counter("seckill.order.failure", "reason", "duplicate").increment();
             log.error("用户已经购买过了,不能重复购买");
             return;
         }
-        //5.扣减库存
+        //2.扣减库存
         boolean success = iSeckillVoucherService.update()
                 .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId).gt("stock", 0)
+                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
                 //针对本业务对cas方法优化,不再要求库存与之前查出的一致,而是库存大于0,就进行扣减
                 .update();
         if(!success){
+            meterRegistry.counter("seckill.order.failure", "reason", "stock").increment();
             log.error("库存不足");
+            //回滚已插入的订单,消息照常确认
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        }
+    }
+
+    /**
+     * 插入订单,跳过重复的订单,返回实际插入的行数
+     * 主键冲突同样会被跳过,而订单id被其他订单占用不是重复下单,抛出异常回滚,消息留在pending中重试,最终进入死信stream
+     */
+    private int insertOrders(List<VoucherOrder> orders) {
+        int k = getBaseMapper().insertBatchSkipDuplicate(orders);
+        if(k < orders.size()){
+            Map<Long, VoucherOrder> byId = new HashMap<>();
+            orders.forEach(order -> byId.put(order.getId(), order));
+            for (VoucherOrder existing : getBaseMapper().selectBatchIds(byId.keySet())) {
+                VoucherOrder order = byId.get(existing.getId());
+                if(!existing.getUserId().equals(order.getUserId()) || !existing.getVoucherId().equals(order.getVoucherId())){
+                    throw new RuntimeException("订单id已被其他订单使用,id:" + existing.getId());
+                }
+            }
+        }
+        return k;
+    }
+
+    /**
+     * 同一张优惠券的一批订单:一次批量插入(跳过重复订单),再按实际插入的数量一次扣减库存
+     * lua脚本已经保证一人一单,这里的重复只来自消息的重复投递
+     */
+    @Transactional
+    public void createVoucherOrders(Long voucherId, List<VoucherOrder> orders) {
+        //1.多行插入,跳过重复订单,返回实际插入的行数
+        int k = insertOrders(orders);
+        if(k == 0){
+            meterRegistry.counter("seckill.order.failure", "reason", "duplicate").increment(orders.size());
             return;
         }
-        // 6.4存入当前订单
-        save(voucherOrder);
+        //2.一次扣减k个库存
+        boolean success = iSeckillVoucherService.update()
+                .setSql("stock = stock - " + k)
+                .eq("voucher_id", voucherId).ge("stock", k)
+                .update();
+        if(!success){
+            //抛出异常回滚,由调用方逐条处理
+            throw new RuntimeException("库存不足,voucherId:" + voucherId);
+        }
+        //回滚时由逐条处理计数,这里只计提交的批次
+        if(k < orders.size()){
+            meterRegistry.counter("seckill.order.failure", "reason", "duplicate").increment(orders.size() - k);
+        }
     }
 
 
@@ -1,5 +1,6 @@
 package com.almond.service.impl;
 
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.almond.dto.Result;
 import com.almond.entity.Voucher;
@@ -7,14 +8,31 @@ import com.almond.mapper.VoucherMapper;
 import com.almond.entity.SeckillVoucher;
 import com.almond.service.ISeckillVoucherService;
 import com.almond.service.IVoucherService;
+import com.almond.utils.SeckillStocks;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import static com.almond.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.almond.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -22,15 +40,32 @@ import static com.almond.utils.RedisConstants.SECKILL_STOCK_KEY;
  * </p>
  *
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
+    //补充库存与归还租约相同,加到第一个分片
+    private static final DefaultRedisScript<Long> STOCK_RETURN_SCRIPT;
+    static {
+        STOCK_RETURN_SCRIPT = new DefaultRedisScript<>();
+        STOCK_RETURN_SCRIPT.setLocation(new ClassPathResource("stock_lease.lua"));
+        STOCK_RETURN_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    //秒杀库存默认分片数,1表示不分片
+    @Value("${almond.seckill.stock-shards:1}")
+    private int defaultStockShards;
+
+    //秒杀结束后redis数据保留的时长,期间仍能拒绝重复下单
+    @Value("${almond.seckill.cleanup-retention:1d}")
+    private Duration cleanupRetention;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -51,8 +86,117 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 在redis中创建优惠券库存
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),
-                voucher.getStock().toString());
+        // 在redis中创建优惠券库存,分片时一次写入分片数和所有分片
+        int shards = voucher.getStockShards() != null ? voucher.getStockShards() : defaultStockShards;
+        stringRedisTemplate.opsForValue().multiSet(
+                SeckillStocks.stockEntries(voucher.getId(), voucher.getStock(), shards));
+        // 秒杀时间窗口与限购数量,由lua脚本与库存、一人一单一起校验,下单时不再查询数据库
+        stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + voucher.getId(),
+                SeckillStocks.saleMeta(voucher.getBeginTime(), voucher.getEndTime()));
+    }
+
+    @Override
+    @Transactional
+    public void restockSeckillVoucher(Long voucherId, Integer amount) {
+        if (amount == null || amount <= 0) {
+            throw new RuntimeException("补充的库存必须大于0");
+        }
+        // 增加数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + amount)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            throw new RuntimeException("秒杀券不存在");
+        }
+        // 增加redis库存,并通知各节点清除售罄标记
+        stringRedisTemplate.execute(STOCK_RETURN_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), String.valueOf(-amount));
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 单独设置一张秒杀券的准入控制,写入seckill:meta:{id},各节点在refresh-interval内生效
+     * 为空的参数恢复为默认配置;时间窗口随秒杀结束一起清理
+     */
+    @Override
+    public void updateSeckillAdmission(Long voucherId, Long rate, Long burst, Long multiple) {
+        String metaKey = SECKILL_META_KEY + voucherId;
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(metaKey))) {
+            throw new RuntimeException("秒杀券不存在或已结束");
+        }
+        Map<String, String> values = new HashMap<>();
+        List<Object> removed = new ArrayList<>();
+        putOrRemove(values, removed, SeckillStocks.META_RATE, rate);
+        putOrRemove(values, removed, SeckillStocks.META_BURST, burst);
+        putOrRemove(values, removed, SeckillStocks.META_MULTIPLE, multiple);
+        if (!values.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(metaKey, values);
+        }
+        if (!removed.isEmpty()) {
+            stringRedisTemplate.opsForHash().delete(metaKey, removed.toArray());
+        }
+    }
+
+    private static void putOrRemove(Map<String, String> values, List<Object> removed, String field, Long value) {
+        if (value == null) {
+            removed.add(field);
+        } else if (value < 0) {
+            throw new RuntimeException(field + "不能小于0");
+        } else {
+            values.put(field, value.toString());
+        }
+    }
+
+    /**
+     * 定时清理已结束秒杀的库存、时间窗口与已购买用户
+     * 位图分段的key无法由优惠券id算出,扫描一次全部位图key,删除属于已结束秒杀的分段
+     */
+    @Scheduled(fixedDelayString = "${almond.seckill.cleanup-interval:3600000}")
+    public void cleanUpEndedSeckill() {
+        long deadline = System.currentTimeMillis() - cleanupRetention.toMillis();
+        try {
+            Set<Long> ended = new HashSet<>();
+            for (String metaKey : scanKeys(SECKILL_META_KEY + "*")) {
+                String id = metaKey.substring(SECKILL_META_KEY.length());
+                Object end = stringRedisTemplate.opsForHash().get(metaKey, SeckillStocks.META_END);
+                if (StrUtil.isNumeric(id) && end != null && Long.parseLong(end.toString()) < deadline) {
+                    ended.add(Long.valueOf(id));
+                }
+            }
+            if (ended.isEmpty()) {
+                return;
+            }
+            // 先删除位图,时间窗口被删除后就无法再判断位图属于已结束的秒杀
+            List<String> buyerKeys = new ArrayList<>();
+            for (String buyerKey : scanKeys(SECKILL_BUYERS_KEY + "*")) {
+                String id = StrUtil.subBetween(buyerKey, SECKILL_BUYERS_KEY, ":");
+                if (StrUtil.isNumeric(id) && ended.contains(Long.valueOf(id))) {
+                    buyerKeys.add(buyerKey);
+                }
+            }
+            if (!buyerKeys.isEmpty()) {
+                stringRedisTemplate.delete(buyerKeys);
+            }
+            for (Long voucherId : ended) {
+                String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+                stringRedisTemplate.delete(SeckillStocks.allKeys(voucherId,
+                        shards == null ? 1 : Integer.parseInt(shards)));
+                log.info("已清理结束的秒杀券,voucherId:{}", voucherId);
+            }
+        } catch (Exception e) {
+            log.warn("清理结束的秒杀券失败", e);
+        }
+    }
+
+    private List<String> scanKeys(String pattern) {
+        return stringRedisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            List<String> keys = new ArrayList<>();
+            try (Cursor<byte[]> cursor = connection.scan(
+                    ScanOptions.scanOptions().match(pattern).count(1000).build())) {
+                cursor.forEachRemaining(key -> keys.add(new String(key, StandardCharsets.UTF_8)));
+            }
+            return keys;
+        });
     }
 }
@@ -0,0 +1,34 @@
+package com.almond.utils;
+
+import com.almond.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+/**
+ * 管理接口(/admin/**)只允许almond.admin.user-ids中的用户访问,在LoginInterceptor之后执行
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final Set<Long> adminUserIds;
+
+    public AdminInterceptor(Set<Long> adminUserIds) {
+        this.adminUserIds = adminUserIds;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        if (!adminUserIds.contains(user.getId())) { //不是管理员
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
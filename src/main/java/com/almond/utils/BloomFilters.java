@@ -0,0 +1,176 @@
+package com.almond.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.almond.utils.RedisConstants.*;
+
+/**
+ * 店铺、博客、用户id的布隆过滤器,拦截一定不存在的id,防止缓存穿透
+ * 启动时由BloomFilterInitializer从数据库批量构建,新增数据时增量添加
+ */
+@Slf4j
+@Component
+public class BloomFilters {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    //添加广播格式: 过滤器名称|id
+    private static final String MESSAGE_SEPARATOR = "|";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisCircuitBreaker breaker;
+
+    private final Map<String, RedisBloomFilter> filters = new HashMap<>();
+
+    //缓存key前缀 -> 过滤器,供CacheClient按key前缀查找
+    private final Map<String, RedisBloomFilter> filtersByKeyPrefix = new HashMap<>();
+
+    //过滤器名称 -> 写入redis失败的id,已在本地镜像中,由retryPendingAdds重新写入并广播
+    private final Map<String, Set<String>> pendingAdds = new ConcurrentHashMap<>();
+
+    //构建完成之前过滤器是空的,此时不能拦截任何id
+    private volatile boolean ready = false;
+
+    public BloomFilters(StringRedisTemplate stringRedisTemplate, RedisCircuitBreaker breaker,
+                        @Value("${almond.bloom.expected-insertions:1000000}") long expectedInsertions,
+                        @Value("${almond.bloom.fpp:0.01}") double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.breaker = breaker;
+        for (String name : new String[]{SHOP, BLOG, USER}) {
+            filters.put(name, new RedisBloomFilter(name, expectedInsertions, fpp, stringRedisTemplate));
+        }
+        filtersByKeyPrefix.put(CACHE_SHOP_KEY, filters.get(SHOP));
+        filtersByKeyPrefix.put(CACHE_SHOP_BATCH_KEY, filters.get(SHOP));
+        filtersByKeyPrefix.put(CACHE_USER_KEY, filters.get(USER));
+    }
+
+    /**
+     * 判断id是否可能存在
+     * @return false:一定不存在 true:可能存在(或过滤器尚未构建完成)
+     */
+    public boolean mightContain(String name, Object id) {
+        return !ready || filters.get(name).mightContain(id);
+    }
+
+    /**
+     * 按缓存key前缀判断id是否可能存在,没有对应过滤器的前缀一律放行
+     */
+    public boolean mightContainByKeyPrefix(String keyPrefix, Object id) {
+        RedisBloomFilter filter = filtersByKeyPrefix.get(keyPrefix);
+        return !ready || filter == null || filter.mightContain(id);
+    }
+
+    /**
+     * 新增数据后调用,写入本地与redis,并广播给其他节点更新本地镜像
+     * 数据已经写入数据库,redis不可用时不抛出异常,记录下来稍后重试
+     */
+    public void add(String name, Object id) {
+        RedisBloomFilter filter = filters.get(name);
+        long[] offsets = filter.addLocal(id);
+        boolean written;
+        try {
+            written = breaker.runQuietly(() -> {
+                filter.addToRedis(offsets);
+                stringRedisTemplate.convertAndSend(BLOOM_FILTER_CHANNEL, name + MESSAGE_SEPARATOR + id);
+            });
+        } catch (RuntimeException e) {
+            written = false;
+        }
+        if (!written) {
+            pendingAdds.computeIfAbsent(name, k -> ConcurrentHashMap.newKeySet()).add(id.toString());
+            log.warn("布隆过滤器{}写入redis失败,稍后重试,id:{}", name, id);
+        }
+    }
+
+    /**
+     * 重新写入之前失败的添加:本地镜像合并到redis,再广播这些id
+     * 重启后本地记录丢失,由启动时从数据库构建并合并到redis补上
+     */
+    @Scheduled(fixedDelayString = "${almond.bloom.retry-interval:10000}")
+    public void retryPendingAdds() {
+        pendingAdds.forEach((name, ids) -> {
+            if (ids.isEmpty()) {
+                return;
+            }
+            List<String> batch = new ArrayList<>(ids);
+            RedisBloomFilter filter = filters.get(name);
+            try {
+                if (!breaker.runQuietly(() -> {
+                    filter.mergeToRedis();
+                    batch.forEach(id -> stringRedisTemplate.convertAndSend(BLOOM_FILTER_CHANNEL,
+                            name + MESSAGE_SEPARATOR + id));
+                })) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                log.warn("布隆过滤器{}重新写入redis失败", name, e);
+                return;
+            }
+            ids.removeAll(batch);
+            log.info("布隆过滤器{}重新写入{}个id", name, batch.size());
+        });
+    }
+
+    /**
+     * 处理其他节点的添加广播
+     * @param message 过滤器名称|id
+     */
+    public void onAddMessage(String message) {
+        int index = message.indexOf(MESSAGE_SEPARATOR);
+        RedisBloomFilter filter = index < 0 ? null : filters.get(message.substring(0, index));
+        if (filter == null) {
+            log.warn("无法解析的布隆过滤器消息:{}", message);
+            return;
+        }
+        filter.addLocal(message.substring(index + 1));
+    }
+
+    /**
+     * 从数据库批量构建的结果写入本地镜像
+     */
+    public void putAllLocal(String name, Collection<?> ids) {
+        RedisBloomFilter filter = filters.get(name);
+        ids.forEach(filter::addLocal);
+    }
+
+    /**
+     * 批量构建结束:本地位图合并到redis,再把redis中其他节点写入的位同步回来,之后开始拦截
+     */
+    public void completeBuild() {
+        for (RedisBloomFilter filter : filters.values()) {
+            filter.mergeToRedis();
+            filter.loadFromRedis();
+        }
+        ready = true;
+    }
+
+    /**
+     * 定时从redis同步位图,弥补丢失的添加广播
+     */
+    @Scheduled(fixedDelayString = "${almond.bloom.sync-interval:300000}")
+    public void syncFromRedis() {
+        if (!ready) {
+            return;
+        }
+        try {
+            filters.values().forEach(RedisBloomFilter::loadFromRedis);
+        } catch (Exception e) {
+            log.warn("同步布隆过滤器失败", e);
+        }
+    }
+}
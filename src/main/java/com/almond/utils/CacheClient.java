@@ -1,27 +1,139 @@
 package com.almond.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+import static com.almond.utils.RedisCircuitBreaker.RedisUnavailableException;
 import static com.almond.utils.RedisConstants.*;
 
+@Slf4j
 @Component
 public class CacheClient {
 
+    //本节点标识,用于忽略自己发布的失效消息
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+    //失效消息格式: 节点id|key
+    private static final String MESSAGE_SEPARATOR = "|";
+    //本地缓存中表示"数据库中不存在"的占位对象,对应redis中的空串
+    private static final Object NULL_VALUE = new Object();
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
     //注意IOC是使用new对象的方式来实现注入的,因此工具方法没法使用static
     private StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    //缓存值以编码后的原始字节存取,编码格式由codec决定
+    private final RedisTemplate<String, byte[]> bytesRedisTemplate;
+    private final CacheCodec codec;
+
+    //一级缓存:进程内缓存,存放反序列化后的对象,热点key不再每次访问redis并解析json
+    private final Cache<String, Object> localCache;
+
+    //二级缓存(redis)命中统计,一级缓存的统计由caffeine自身记录
+    private final Counter redisHitCounter;
+    private final Counter redisMissCounter;
+
+    //未命中时合并同一key的并发数据库查询
+    private final SingleFlight singleFlight;
+
+    //拦截一定不存在的id,不再访问redis和数据库
+    private final BloomFilters bloomFilters;
+    private final Counter bloomRejectCounter;
+
+    //逻辑过期缓存的提前刷新(XFetch),beta越大越倾向于提前刷新
+    private final boolean refreshAhead;
+    private final double refreshBeta;
+    private final Counter earlyRefreshCounter;
+    private final Counter expiredRefreshCounter;
+
+    //未预热的key首次访问时,等待其他节点加载的最长时间
+    private static final long ADMISSION_RETRY_MILLIS = 50;
+    private final long admissionWaitMillis;
+    private final Counter admissionCounter;
+
+    //逻辑过期缓存的异步重建
+    private final CacheRebuildScheduler rebuildScheduler;
+
+    //redis不可用时的降级:熔断器快速失败,读请求使用本地旧快照,快照中没有的才查询数据库,并限制查库并发
+    private final RedisCircuitBreaker breaker;
+    private final Cache<String, Object> staleCache;
+    private final Semaphore degradedDbPermits;
+    private final long degradedDbWaitMillis;
+    private final Counter degradedStaleCounter;
+    private final Counter degradedDbCounter;
+    private final Counter degradedRejectCounter;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisTemplate<String, byte[]> bytesRedisTemplate,
+                       CacheCodec codec,
+                       MeterRegistry meterRegistry,
+                       BloomFilters bloomFilters,
+                       CacheRebuildScheduler rebuildScheduler,
+                       RedisCircuitBreaker breaker,
+                       @Value("${almond.cache.local.maximum-size:10000}") long maximumSize,
+                       @Value("${almond.cache.local.ttl:10s}") Duration ttl,
+                       @Value("${almond.cache.single-flight.timeout:3s}") Duration singleFlightTimeout,
+                       @Value("${almond.cache.refresh-ahead.enabled:true}") boolean refreshAhead,
+                       @Value("${almond.cache.refresh-ahead.beta:1.0}") double refreshBeta,
+                       @Value("${almond.cache.admission.max-wait:200ms}") Duration admissionWait,
+                       @Value("${almond.cache.stale.maximum-size:10000}") long staleMaximumSize,
+                       @Value("${almond.cache.stale.ttl:30m}") Duration staleTtl,
+                       @Value("${almond.cache.degraded.db-concurrency:20}") int degradedDbConcurrency,
+                       @Value("${almond.cache.degraded.db-wait:100ms}") Duration degradedDbWait) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.bytesRedisTemplate = bytesRedisTemplate;
+        this.codec = codec;
+        this.singleFlight = new SingleFlight(singleFlightTimeout.toMillis());
+        this.bloomFilters = bloomFilters;
+        this.rebuildScheduler = rebuildScheduler;
+        this.breaker = breaker;
+        this.degradedDbPermits = new Semaphore(degradedDbConcurrency);
+        this.degradedDbWaitMillis = degradedDbWait.toMillis();
+        this.refreshAhead = refreshAhead;
+        this.refreshBeta = refreshBeta;
+        this.admissionWaitMillis = admissionWait.toMillis();
+        //一级缓存同时有容量和ttl限制,ttl是跨节点一致性的兜底(失效消息丢失时最多脏ttl时长)
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        //旧快照不随失效消息清除,只在redis不可用时使用
+        this.staleCache = Caffeine.newBuilder()
+                .maximumSize(staleMaximumSize)
+                .expireAfterWrite(staleTtl)
+                .build();
+        //指标 cache.gets{cache=l1|l2,result=hit|miss}
+        CaffeineCacheMetrics.monitor(meterRegistry, localCache, "l1");
+        this.redisHitCounter = meterRegistry.counter("cache.gets", "cache", "l2", "result", "hit");
+        this.redisMissCounter = meterRegistry.counter("cache.gets", "cache", "l2", "result", "miss");
+        this.bloomRejectCounter = meterRegistry.counter("cache.bloom.rejected");
+        this.earlyRefreshCounter = meterRegistry.counter("cache.refresh", "reason", "early");
+        this.expiredRefreshCounter = meterRegistry.counter("cache.refresh", "reason", "expired");
+        this.admissionCounter = meterRegistry.counter("cache.admission");
+        this.degradedStaleCounter = meterRegistry.counter("cache.degraded", "result", "stale");
+        this.degradedDbCounter = meterRegistry.counter("cache.degraded", "result", "db");
+        this.degradedRejectCounter = meterRegistry.counter("cache.degraded", "result", "rejected");
     }
 
     /**
@@ -32,7 +144,14 @@ public class CacheClient {
      * @param unit 过期时间单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        byte[] bytes = codec.encode(value);
+        breaker.call(() -> {
+            bytesRedisTemplate.opsForValue().set(key, bytes,time,unit);
+            //通知其他节点清除旧的一级缓存
+            publishInvalidation(key);
+            return null;
+        });
+        localCache.invalidate(key);
     }
 
     /**
@@ -43,10 +162,71 @@ public class CacheClient {
      * @param unit 存入的逻辑过期时间单位
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        RedisData redisData = new RedisData();
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 存入数据并设置逻辑过期,同时记录本次重建耗时,供提前刷新判断
+     * @param key 存入的键
+     * @param value 存入的对象
+     * @param time 存入的逻辑过期时间
+     * @param unit 存入的逻辑过期时间单位
+     * @param rebuildMillis 从数据库加载该数据的耗时(毫秒),未知时为null
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long rebuildMillis){
+        RedisData<Object> redisData = new RedisData<>();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        redisData.setRebuildMillis(rebuildMillis);
+        byte[] bytes = codec.encode(redisData);
+        breaker.call(() -> {
+            bytesRedisTemplate.opsForValue().set(key, bytes);
+            publishInvalidation(key);
+            return null;
+        });
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 用一次管道批量存入数据并设置逻辑过期,用于启动预热
+     * 每个key的逻辑过期时间在[time, time*(1+jitterRatio))之间随机,避免同一批数据在同一时刻过期
+     * @param values 键到对象的映射
+     * @param time 存入的逻辑过期时间
+     * @param unit 存入的逻辑过期时间单位
+     * @param jitterRatio 过期时间随机延长的比例,0表示不随机
+     */
+    public void setWithLogicalExpireBatch(Map<String, ?> values, Long time, TimeUnit unit, double jitterRatio){
+        long seconds = unit.toSeconds(time);
+        byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        LocalDateTime now = LocalDateTime.now();
+        breaker.call(() -> bytesRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                RedisData<Object> redisData = new RedisData<>();
+                redisData.setData(entry.getValue());
+                long jitter = (long) (seconds * jitterRatio * ThreadLocalRandom.current().nextDouble());
+                redisData.setExpireTime(now.plusSeconds(seconds + jitter));
+                connection.stringCommands().set(entry.getKey().getBytes(StandardCharsets.UTF_8), codec.encode(redisData));
+                connection.publish(channel, (NODE_ID + MESSAGE_SEPARATOR + entry.getKey()).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        }));
+        values.keySet().forEach(localCache::invalidate);
+    }
+
+    /**
+     * 删除缓存,供数据库写操作之后调用
+     * 同时清除本节点的一级缓存和旧快照,并通知其他节点清除
+     * redis不可用时抛出异常,由调用方回滚数据库事务,不能留下与数据库不一致的缓存
+     * @param key 要删除的键
+     */
+    public void delete(String key){
+        breaker.call(() -> {
+            stringRedisTemplate.delete(key);
+            publishInvalidation(key);
+            return null;
+        });
+        localCache.invalidate(key);
+        staleCache.invalidate(key);
     }
 
     /**
@@ -64,32 +244,181 @@ public class CacheClient {
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type,
                                           Function<ID,R> dbFallback,
                                           Long time,TimeUnit unit){
+        //布隆过滤器判断一定不存在,直接返回
+        if(!bloomFilters.mightContainByKeyPrefix(keyPrefix, id)){
+            bloomRejectCounter.increment();
+            return null;
+        }
         String key = keyPrefix+id;
-        //1.从redis中查询信息返回为json
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //0.先查本地一级缓存
+        Object local = localCache.getIfPresent(key);
+        if(local == NULL_VALUE){
+            return null;
+        }
+        if(type.isInstance(local)){
+            return type.cast(local);
+        }
+        //1.从redis中查询编码后的信息
+        byte[] bytes;
+        try {
+            bytes = breaker.call(() -> bytesRedisTemplate.opsForValue().get(key));
+        } catch (RedisUnavailableException e) {
+            return singleFlight.execute(key, () -> degradedLoad(key, id, type, dbFallback));
+        }
         //2.判断是否查到信息,有信息直接返回
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
+        if(bytes != null && bytes.length > 0){
+            redisHitCounter.increment();
+            R r = codec.decode(bytes, type);
+            putLocal(key, r);
+            return r;
         }
         //查看信息是否是空串,是空串则为非法的查询,返回null
-        if("".equals(json)){
+        if(bytes != null){
+            redisHitCounter.increment();
+            putLocal(key, NULL_VALUE);
             return null;
         }
-        //查询数据库,工具类方法中无法解决,使用函数式编程,调用方法参数中的函数来解决
-        R r = dbFallback.apply(id);
-        if(r == null){
-            stringRedisTemplate.opsForValue().set(key, "",CACHE_NULL_TTL,TimeUnit.MINUTES);
-            return null;
-        }
-        //存在,写入redis
-        this.set(key, r,time, unit);
-        //6.向前端返回信息
-        return r;
+        redisMissCounter.increment();
+        //本节点同一key并发未命中时,只有一个线程查询数据库并写入redis,其余线程等待共享结果
+        //查询失败时异常传给所有等待者,不写入redis,避免把失败结果缓存下来
+        return singleFlight.execute(key, () -> {
+            //上一个加载者可能刚刚完成,再检查一次本地缓存
+            Object loadedLocal = localCache.getIfPresent(key);
+            if(loadedLocal == NULL_VALUE){
+                return null;
+            }
+            if(type.isInstance(loadedLocal)){
+                return type.cast(loadedLocal);
+            }
+            //查询数据库,工具类方法中无法解决,使用函数式编程,调用方法参数中的函数来解决
+            R r = dbFallback.apply(id);
+            //写回redis失败不影响本次返回,熔断器会记录失败
+            if(r == null){
+                breaker.runQuietly(() -> bytesRedisTemplate.opsForValue().set(key, EMPTY_BYTES,CACHE_NULL_TTL,TimeUnit.MINUTES));
+                putLocal(key, NULL_VALUE);
+                return null;
+            }
+            //存在,写入redis
+            setQuietly(() -> this.set(key, r,time, unit));
+            //在结束合并之前放入本地缓存,保证之后到达的线程能直接命中
+            putLocal(key, r);
+            //6.向前端返回信息
+            return r;
+        });
     }
 
 
-    //线程池,提供redis数据的重建
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 批量查询,解决缓存穿透,把N次缓存/数据库往返变为常数次
+     * 本地缓存 -> 一次MGET -> 未命中的id一次数据库IN查询 -> 一次管道批量写回redis
+     * @param keyPrefix redis中存储对象的键前缀
+     * @param ids id列表,可以有重复
+     * @param type 存储对象的类对象
+     * @param batchDbFallback 按id集合批量查询数据库的函数,返回id到对象的映射,不存在的id不放入
+     * @param time 过期时间
+     * @param unit 过期时间单位
+     * @param <R> 返回的对象的类型
+     * @param <ID> id的类型
+     * @return 与ids顺序一一对应的结果,不存在的id对应位置为null
+     */
+    public <R,ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                   Function<Collection<ID>, Map<ID, R>> batchDbFallback,
+                                                   Long time, TimeUnit unit){
+        Map<ID, R> found = new HashMap<>();
+        //1.去重,过滤布隆过滤器判断一定不存在的id,并查询本地一级缓存
+        List<ID> redisIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if(!bloomFilters.mightContainByKeyPrefix(keyPrefix, id)){
+                bloomRejectCounter.increment();
+                continue;
+            }
+            Object local = localCache.getIfPresent(keyPrefix + id);
+            if(type.isInstance(local)){
+                found.put(id, type.cast(local));
+            }else if(local != NULL_VALUE){
+                redisIds.add(id);
+            }
+        }
+        //2.一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        boolean redisAvailable = true;
+        if(!redisIds.isEmpty()){
+            List<String> keys = new ArrayList<>(redisIds.size());
+            redisIds.forEach(id -> keys.add(keyPrefix + id));
+            List<byte[]> values;
+            try {
+                values = breaker.call(() -> bytesRedisTemplate.opsForValue().multiGet(keys));
+            } catch (RedisUnavailableException e) {
+                //redis不可用,先用旧快照,快照中没有的再查数据库
+                redisAvailable = false;
+                values = Collections.emptyList();
+                for (ID id : redisIds) {
+                    Object stale = staleCache.getIfPresent(keyPrefix + id);
+                    if(type.isInstance(stale)){
+                        degradedStaleCounter.increment();
+                        found.put(id, type.cast(stale));
+                    }else if(stale == NULL_VALUE){
+                        degradedStaleCounter.increment();
+                    }else{
+                        missIds.add(id);
+                    }
+                }
+            }
+            for (int i = 0; redisAvailable && i < redisIds.size(); i++) {
+                ID id = redisIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                if(bytes == null){
+                    redisMissCounter.increment();
+                    missIds.add(id);
+                    continue;
+                }
+                redisHitCounter.increment();
+                if(bytes.length == 0){
+                    //空串,数据库中不存在
+                    putLocal(keys.get(i), NULL_VALUE);
+                    continue;
+                }
+                R r = codec.decode(bytes, type);
+                putLocal(keys.get(i), r);
+                found.put(id, r);
+            }
+        }
+        //3.未命中的id一次IN查询数据库,并用一次管道写回redis
+        if(!missIds.isEmpty()){
+            Map<ID, R> loaded = redisAvailable ? batchDbFallback.apply(missIds)
+                    : withDegradedPermit(() -> batchDbFallback.apply(missIds));
+            long seconds = unit.toSeconds(time);
+            long nullSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+            byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+            breaker.runQuietly(() -> bytesRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    String key = keyPrefix + id;
+                    byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                    R r = loaded.get(id);
+                    if(r == null){
+                        connection.stringCommands().setEx(rawKey, nullSeconds, EMPTY_BYTES);
+                    }else{
+                        connection.stringCommands().setEx(rawKey, seconds, codec.encode(r));
+                    }
+                    connection.publish(channel, (NODE_ID + MESSAGE_SEPARATOR + key).getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            }));
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                putLocal(keyPrefix + id, r == null ? NULL_VALUE : r);
+                if(r != null){
+                    found.put(id, r);
+                }
+            }
+        }
+        //4.按输入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
 
     /**
      * 使用逻辑时间解决缓冲穿透
@@ -107,58 +436,298 @@ public class CacheClient {
     public <R,ID> R queryByIdWithLogicalExpireTime(String keyPrefix, String lockKeyPrefix, ID id, Class<R> type,
                                             Function<ID, R> dbFallback,
                                             Long time, TimeUnit unit){
+        //布隆过滤器判断一定不存在,直接返回
+        if(!bloomFilters.mightContainByKeyPrefix(keyPrefix, id)){
+            bloomRejectCounter.increment();
+            return null;
+        }
         String key = keyPrefix+id;
-        //1.从redis中查询信息,返回为json
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String lockKey = lockKeyPrefix + id;
+        //0.先查本地一级缓存,一级缓存中存放的是data已转换为真实类型的RedisData,逻辑未过期直接返回
+        Object local = localCache.getIfPresent(key);
+        if(local == NULL_VALUE){
+            return null;
+        }
+        if(local instanceof RedisData){
+            RedisData<?> localData = (RedisData<?>) local;
+            if(type.isInstance(localData.getData()) && LocalDateTime.now().isBefore(localData.getExpireTime())){
+                //未过期,但按概率提前刷新
+                if(shouldRefreshEarly(localData)){
+                    earlyRefreshCounter.increment();
+                    rebuildAsync(key, lockKey, id, type, localData.getExpireTime(), dbFallback, time, unit);
+                }
+                return type.cast(localData.getData());
+            }
+        }
+        //1.从redis中查询编码后的信息
+        byte[] bytes;
+        try {
+            bytes = breaker.call(() -> bytesRedisTemplate.opsForValue().get(key));
+        } catch (RedisUnavailableException e) {
+            return singleFlight.execute(key, () -> degradedLoad(key, id, type, dbFallback));
+        }
         //2.判断是否查到店铺
-        if(StrUtil.isBlank(json)){
-            return null; //redis中没有该数据,说明该其不是热点数据(我们事先对热点数据做了预热)
+        if(bytes == null){
+            //redis中没有该数据(未预热或刚被删除),由真实访问决定是否成为热点数据
+            redisMissCounter.increment();
+            return admit(key, lockKey, id, type, dbFallback, time, unit);
         }
-        //3.在redis中放入null值解决缓存穿透问题,上一步判断了字符串不为null,若查到的数据是空字符串直接返回
-        if("".equals(json)){
+        //3.在redis中放入null值解决缓存穿透问题,若查到的数据是空字符串直接返回
+        if(bytes.length == 0){
+            putLocal(key, NULL_VALUE);
             return null;
         }
-        //4.1 将json转为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        redisHitCounter.increment();
+        //4.1 一次解码为RedisData<R>,data直接是真实类型
+        RedisData<R> redisData = codec.decodeEnvelope(bytes, type);
         LocalDateTime expireTime = redisData.getExpireTime();
-        //未知data的类型,先拿到Object类型的date,将其转换为json,在将json转换为真实类型
-        Object data = redisData.getData();
-        String dataJson = JSONUtil.toJsonStr(data);
-        R r = JSONUtil.toBean(dataJson, type);
+        R r = redisData.getData();
         //4.2 判断在逻辑上是否过期
         if (LocalDateTime.now().isBefore(expireTime)){
-            //4.3 未过期,直接返回店铺信息
+            //4.3 未过期,放入一级缓存并直接返回店铺信息,按概率提前刷新
+            putLocal(key, redisData);
+            if(shouldRefreshEarly(redisData)){
+                earlyRefreshCounter.increment();
+                rebuildAsync(key, lockKey, id, type, expireTime, dbFallback, time, unit);
+            }
             return r;
         }
         // 4.4 过期,获取互斥锁,开启一个线程更新redis,并返回旧数据
-        // 尝试获取锁
-        String lockKey = lockKeyPrefix + id;
-        if (tryLock(lockKey)){
-            //检查拿到锁后的缓存是否过期(可能在本线程获取锁的过程中,其他线程已经完成了数据重建)
-            json = stringRedisTemplate.opsForValue().get(key);
-            redisData = JSONUtil.toBean(json, RedisData.class);
-            expireTime = redisData.getExpireTime();
-            if (LocalDateTime.now().isBefore(expireTime)){
-                // 未过期,直接返回店铺信息
-                return r;
-            }
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                //重建缓存后释放锁
+        staleCache.put(key, redisData);
+        expiredRefreshCounter.increment();
+        rebuildAsync(key, lockKey, id, type, expireTime, dbFallback, time, unit);
+        //数据过期就直接返回旧数据
+        return r;
+    }
+
+    /**
+     * 逻辑过期缓存未命中时的准入:
+     * 本节点内合并并发请求,集群内由拿到互斥锁的节点查询数据库并写入带逻辑过期的缓存,
+     * 没拿到锁的请求短暂等待其写入,超时后直接查询数据库(不写缓存)
+     */
+    private <R,ID> R admit(String key, String lockKey, ID id, Class<R> type,
+                           Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        return singleFlight.execute(key, () -> {
+            try {
+                return admitFromRedis(key, lockKey, id, type, dbFallback, time, unit);
+            } catch (RedisUnavailableException e) {
+                return degradedLoad(key, id, type, dbFallback);
+            }
+        });
+    }
+
+    private <R,ID> R admitFromRedis(String key, String lockKey, ID id, Class<R> type,
+                                    Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        long deadline = System.currentTimeMillis() + admissionWaitMillis;
+        while (true) {
+            if (tryLock(lockKey)) {
                 try {
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key, JSONUtil.toJsonStr(r1), time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
+                    //拿到锁后再检查一次,可能其他节点刚刚写入
+                    byte[] bytes = breaker.call(() -> bytesRedisTemplate.opsForValue().get(key));
+                    if (bytes != null) {
+                        return decodeAdmitted(key, bytes, type);
+                    }
+                    long start = System.currentTimeMillis();
+                    R r = dbFallback.apply(id);
+                    if (r == null) {
+                        //数据库中不存在,写入空值防止缓存穿透
+                        breaker.runQuietly(() -> bytesRedisTemplate.opsForValue().set(key, EMPTY_BYTES, CACHE_NULL_TTL, TimeUnit.MINUTES));
+                        putLocal(key, NULL_VALUE);
+                        return null;
+                    }
+                    long rebuildMillis = System.currentTimeMillis() - start;
+                    setQuietly(() -> setWithLogicalExpire(key, r, time, unit, rebuildMillis));
+                    staleCache.put(key, r);
+                    admissionCounter.increment();
+                    return r;
+                } finally {
                     unlock(lockKey);
                 }
-            });
+            }
+            //其他节点正在加载,等待其写入
+            byte[] bytes = breaker.call(() -> bytesRedisTemplate.opsForValue().get(key));
+            if (bytes != null) {
+                return decodeAdmitted(key, bytes, type);
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                //等待超时,直接查询数据库,缓存由拿到锁的节点负责写入
+                return dbFallback.apply(id);
+            }
+            try {
+                Thread.sleep(ADMISSION_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return dbFallback.apply(id);
+            }
         }
-        //数据过期就直接返回旧数据
+    }
+
+    private <R> R decodeAdmitted(String key, byte[] bytes, Class<R> type){
+        if (bytes.length == 0) {
+            putLocal(key, NULL_VALUE);
+            return null;
+        }
+        RedisData<R> redisData = codec.decodeEnvelope(bytes, type);
+        putLocal(key, redisData);
+        return redisData.getData();
+    }
+
+    /**
+     * XFetch概率提前刷新: now - 重建耗时*beta*ln(rand) >= 逻辑过期时间 时提前刷新
+     * 重建越慢、离过期越近,提前刷新的概率越大,各节点的刷新时刻随机分散在过期前,而不是集中在过期的那一刻
+     * @param redisData 缓存的包装对象,其中记录了上次重建耗时
+     * @return 是否需要提前刷新
+     */
+    private boolean shouldRefreshEarly(RedisData<?> redisData){
+        Long rebuildMillis = redisData.getRebuildMillis();
+        if(!refreshAhead || rebuildMillis == null || rebuildMillis <= 0){
+            return false;
+        }
+        //1-nextDouble()取值(0,1],避免ln(0)
+        double gapMillis = -rebuildMillis * refreshBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return !LocalDateTime.now().plusNanos((long) (gapMillis * 1_000_000)).isBefore(redisData.getExpireTime());
+    }
+
+    /**
+     * 获取互斥锁,开启一个线程重建缓存
+     * @param observedExpireTime 调用者看到的逻辑过期时间,redis中的过期时间比它晚说明其他线程已经重建过了
+     */
+    private <R,ID> void rebuildAsync(String key, String lockKey, ID id, Class<R> type,
+                                     LocalDateTime observedExpireTime, Function<ID, R> dbFallback,
+                                     Long time, TimeUnit unit){
+        //本节点已有该key的重建任务,不必再去抢锁
+        if (rebuildScheduler.isPending(key)){
+            return;
+        }
+        // 尝试获取锁,redis不可用时放弃本次重建,继续返回旧数据
+        try {
+            if (!tryLock(lockKey)){
+                return;
+            }
+        } catch (RedisUnavailableException e) {
+            return;
+        }
+        //检查拿到锁后的缓存是否已经重建(可能在本线程获取锁的过程中,其他线程已经完成了数据重建)
+        byte[] bytes;
+        try {
+            bytes = breaker.call(() -> bytesRedisTemplate.opsForValue().get(key));
+        } catch (RedisUnavailableException e) {
+            unlock(lockKey);
+            return;
+        }
+        if (bytes != null && bytes.length > 0){
+            RedisData<R> current = codec.decodeEnvelope(bytes, type);
+            if (current.getExpireTime().isAfter(observedExpireTime)){
+                unlock(lockKey);
+                return;
+            }
+        }
+        boolean accepted = rebuildScheduler.submit(key, ()->{
+            //重建缓存后释放锁,异常由调度器记录
+            try {
+                long start = System.currentTimeMillis();
+                R r1 = dbFallback.apply(id);
+                //写入redis,直接存放对象,由codec统一编码,同时记录重建耗时
+                this.setWithLogicalExpire(key, r1, time, unit, System.currentTimeMillis() - start);
+            } finally {
+                unlock(lockKey);
+            }
+        });
+        //任务被丢弃(队列已满或数据库变慢),释放锁,本次继续返回旧数据,由之后的请求再次触发重建
+        if (!accepted){
+            unlock(lockKey);
+        }
+    }
+
+    /**
+     * redis不可用时的读取:先返回本地旧快照,没有快照时在限定的并发下查询数据库
+     * 查询结果只放入旧快照,不写redis
+     */
+    private <R,ID> R degradedLoad(String key, ID id, Class<R> type, Function<ID, R> dbFallback){
+        Object stale = staleCache.getIfPresent(key);
+        if (stale instanceof RedisData){
+            stale = ((RedisData<?>) stale).getData();
+        }
+        if (stale == NULL_VALUE){
+            degradedStaleCounter.increment();
+            return null;
+        }
+        if (type.isInstance(stale)){
+            degradedStaleCounter.increment();
+            return type.cast(stale);
+        }
+        R r = withDegradedPermit(() -> dbFallback.apply(id));
+        staleCache.put(key, r == null ? NULL_VALUE : r);
         return r;
     }
 
+    /**
+     * 降级期间限制查询数据库的并发,拿不到许可时快速失败,避免redis故障把压力全部转移到数据库
+     */
+    private <T> T withDegradedPermit(Supplier<T> loader){
+        boolean acquired;
+        try {
+            acquired = degradedDbPermits.tryAcquire(degradedDbWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired){
+            degradedRejectCounter.increment();
+            throw new RuntimeException("系统繁忙,请稍后再试");
+        }
+        try {
+            degradedDbCounter.increment();
+            return loader.get();
+        } finally {
+            degradedDbPermits.release();
+        }
+    }
+
+    /**
+     * 放入一级缓存,同时更新旧快照
+     */
+    private void putLocal(String key, Object value){
+        localCache.put(key, value);
+        staleCache.put(key, value);
+    }
+
+    /**
+     * 查询过程中写回redis,redis不可用时放弃写入,不影响本次返回
+     */
+    private void setQuietly(Runnable write){
+        try {
+            write.run();
+        } catch (RedisUnavailableException e) {
+            log.debug("redis不可用,放弃写回缓存");
+        }
+    }
+
+    /**
+     * 发布缓存失效消息,各节点收到后清除对应的一级缓存
+     * @param key 失效的键
+     */
+    private void publishInvalidation(String key){
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, NODE_ID + MESSAGE_SEPARATOR + key);
+    }
+
+    /**
+     * 处理其他节点发布的失效消息,清除本地一级缓存
+     * @param message 失效消息 节点id|key
+     */
+    public void onInvalidationMessage(String message){
+        int index = message.indexOf(MESSAGE_SEPARATOR);
+        if(index < 0){
+            log.warn("无法解析的缓存失效消息:{}", message);
+            return;
+        }
+        //自己发布的消息,本地缓存已在写入时处理过
+        if(NODE_ID.equals(message.substring(0, index))){
+            return;
+        }
+        localCache.invalidate(message.substring(index + 1));
+    }
+
     /**
      * 获取redis互斥锁
      * setIfAbsent对应setnx,只有在redis中没有这个值时才能set
@@ -166,8 +735,8 @@ public class CacheClient {
      * @return
      */
     private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate
-                .opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
+        Boolean flag = breaker.call(() -> stringRedisTemplate
+                .opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS));
         return BooleanUtil.isTrue(flag); //自动拆箱,并防止flag为null空指针异常
     }
 
@@ -176,7 +745,8 @@ public class CacheClient {
      * @param key
      */
     private void unlock(String key){
-        stringRedisTemplate.delete(key);
+        //释放失败时锁会在10秒后自动过期
+        breaker.runQuietly(() -> stringRedisTemplate.delete(key));
     }
 
 
@@ -0,0 +1,24 @@
+package com.almond.utils;
+
+import java.lang.reflect.Type;
+
+/**
+ * 缓存值的编解码器,CacheClient通过它把对象与redis中的字节互相转换
+ */
+public interface CacheCodec {
+
+    /**
+     * 对象编码为字节
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 字节解码为指定类型的对象,type可以是带泛型的类型,如List&lt;ShopType&gt;
+     */
+    <T> T decode(byte[] bytes, Type type);
+
+    /**
+     * 一次解析出逻辑过期的包装对象,data直接解码为真实类型
+     */
+    <T> RedisData<T> decodeEnvelope(byte[] bytes, Type dataType);
+}
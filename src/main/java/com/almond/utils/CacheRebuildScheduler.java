@@ -0,0 +1,138 @@
+package com.almond.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存重建调度器,代替原来无界队列的固定线程池
+ * 1.有界队列,队列满时直接丢弃重建任务(调用方继续返回旧数据)
+ * 2.同一个key同时只有一个重建任务
+ * 3.数据库变慢(重建耗时的滑动平均超过阈值)时不再排队,只在有空闲线程时接收任务
+ * 4.记录队列长度、重建耗时、失败次数,停机时等待正在执行的任务完成
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    //滑动平均的权重,越大越看重最近一次的耗时
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final ThreadPoolExecutor executor;
+
+    //已提交但还没执行完的key
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private final long slowThresholdMillis;
+    private final long shutdownTimeoutMillis;
+    //重建耗时的指数滑动平均(毫秒)
+    private volatile double latencyEwma = 0;
+
+    private final Timer latencyTimer;
+    private final Counter successCounter;
+    private final Counter failureCounter;
+    private final Counter shedCounter;
+    private final Counter dedupCounter;
+
+    public CacheRebuildScheduler(MeterRegistry meterRegistry,
+                                 @Value("${almond.cache.rebuild.threads:10}") int threads,
+                                 @Value("${almond.cache.rebuild.queue-capacity:1000}") int queueCapacity,
+                                 @Value("${almond.cache.rebuild.slow-threshold:500ms}") Duration slowThreshold,
+                                 @Value("${almond.cache.rebuild.shutdown-timeout:10s}") Duration shutdownTimeout) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.slowThresholdMillis = slowThreshold.toMillis();
+        this.shutdownTimeoutMillis = shutdownTimeout.toMillis();
+        //指标 cache.rebuild.*
+        meterRegistry.gauge("cache.rebuild.queue", executor, e -> e.getQueue().size());
+        meterRegistry.gauge("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount);
+        this.latencyTimer = meterRegistry.timer("cache.rebuild.latency");
+        this.successCounter = meterRegistry.counter("cache.rebuild", "result", "success");
+        this.failureCounter = meterRegistry.counter("cache.rebuild", "result", "failure");
+        this.shedCounter = meterRegistry.counter("cache.rebuild", "result", "shed");
+        this.dedupCounter = meterRegistry.counter("cache.rebuild", "result", "deduplicated");
+    }
+
+    /**
+     * @return 该key是否已有重建任务在排队或执行
+     */
+    public boolean isPending(String key) {
+        return pendingKeys.contains(key);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 重建的缓存key,用于去重
+     * @param task 重建任务
+     * @return 是否被接收,未接收时调用方应释放自己持有的互斥锁,等待下一次请求再触发
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!pendingKeys.add(key)) {
+            dedupCounter.increment();
+            return false;
+        }
+        //数据库变慢时不再排队,避免重建任务堆积把数据库连接池打满
+        if (latencyEwma > slowThresholdMillis && executor.getActiveCount() >= executor.getMaximumPoolSize()) {
+            pendingKeys.remove(key);
+            shedCounter.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            //队列已满或正在停机
+            pendingKeys.remove(key);
+            shedCounter.increment();
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable task) {
+        long start = System.nanoTime();
+        try {
+            task.run();
+            successCounter.increment();
+        } catch (Exception e) {
+            failureCounter.increment();
+            log.error("缓存重建失败,key:{}", key, e);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            latencyTimer.record(nanos, TimeUnit.NANOSECONDS);
+            latencyEwma = EWMA_ALPHA * TimeUnit.NANOSECONDS.toMillis(nanos) + (1 - EWMA_ALPHA) * latencyEwma;
+            pendingKeys.remove(key);
+        }
+    }
+
+    /**
+     * 停机时不再接收新任务,等待已提交的任务完成
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("缓存重建任务未在{}ms内完成,剩余{}个任务被丢弃", shutdownTimeoutMillis,
+                    executor.shutdownNow().size());
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.almond.utils;
+
+/**
+ * 全局唯一id生成器
+ */
+public interface IdGenerator {
+
+    /**
+     * 生成id
+     * @param keyPrefix 业务前缀,如order
+     */
+    long nextId(String keyPrefix);
+}
@@ -0,0 +1,29 @@
+package com.almond.utils;
+
+import cn.hutool.core.lang.ParameterizedTypeImpl;
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 基于hutool JSONUtil的编解码器,与之前写入redis的json字符串格式兼容
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Type type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type, false);
+    }
+
+    @Override
+    public <T> RedisData<T> decodeEnvelope(byte[] bytes, Type dataType) {
+        //按RedisData<dataType>解析,data字段直接转换为真实类型,不再二次序列化
+        return decode(bytes, new ParameterizedTypeImpl(new Type[]{dataType}, null, RedisData.class));
+    }
+}
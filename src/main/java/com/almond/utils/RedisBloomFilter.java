@@ -0,0 +1,175 @@
+package com.almond.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 布隆过滤器,位图存放在redis中(各节点共享),同时在本地保存一份镜像
+ * 查询只读本地镜像,不产生网络请求;添加时同时写本地和redis
+ * 布隆过滤器判断"不存在"一定准确,判断"存在"有一定误判率
+ */
+public class RedisBloomFilter {
+
+    private final String name;
+    //redis中位图的key
+    private final String redisKey;
+    //位图的位数
+    private final long bitSize;
+    //哈希函数个数
+    private final int hashCount;
+    //本地镜像,第i位存放在words[i/64]的第i%64位
+    private final AtomicLongArray words;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * @param name 过滤器名称
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 期望误判率
+     */
+    public RedisBloomFilter(String name, long expectedInsertions, double fpp,
+                            StringRedisTemplate stringRedisTemplate) {
+        this.name = name;
+        this.redisKey = RedisConstants.BLOOM_FILTER_KEY + name;
+        //m = -n*ln(p)/(ln2)^2, k = m/n*ln2
+        long bits = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        //按64位对齐,保证本地镜像与redis位图按字节一一对应
+        this.bitSize = Math.max(64, (bits + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+        this.words = new AtomicLongArray((int) (bitSize / 64));
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 判断元素是否可能存在,只读本地镜像
+     * @return false:一定不存在 true:可能存在
+     */
+    public boolean mightContain(Object id) {
+        for (long offset : offsets(id)) {
+            if ((words.get((int) (offset >>> 6)) & (1L << (offset & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 添加元素,写入本地镜像以及redis位图
+     */
+    public void add(Object id) {
+        addToRedis(addLocal(id));
+    }
+
+    /**
+     * 把addLocal返回的位写入redis位图
+     */
+    public void addToRedis(long[] offsets) {
+        //一次管道写入所有位
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                conn.setBit(redisKey, offset, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只添加到本地镜像,用于批量构建以及接收其他节点的添加广播
+     * @return 该元素对应的位下标
+     */
+    public long[] addLocal(Object id) {
+        long[] offsets = offsets(id);
+        for (long offset : offsets) {
+            setLocalBit(offset);
+        }
+        return offsets;
+    }
+
+    /**
+     * 将本地镜像合并到redis位图(按位或),不会覆盖其他节点同时写入的位
+     */
+    public void mergeToRedis() {
+        byte[] key = redisKey.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (redisKey + ":merge:" + System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = toRedisBytes();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.stringCommands().set(tmpKey, bytes);
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, key, key, tmpKey);
+            connection.keyCommands().del(tmpKey);
+            return null;
+        });
+    }
+
+    /**
+     * 将redis位图合并到本地镜像,同步其他节点添加的元素
+     */
+    public void loadFromRedis() {
+        byte[] key = redisKey.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = stringRedisTemplate.execute(
+                (RedisCallback<byte[]>) connection -> connection.stringCommands().get(key));
+        if (bytes == null) {
+            return;
+        }
+        //redis位图中第i位是第i/8个字节的从高到低第i%8位
+        int length = (int) Math.min(bytes.length, bitSize / 8);
+        for (int w = 0; w * 8 < length; w++) {
+            long word = 0;
+            for (int b = 0; b < 8 && w * 8 + b < length; b++) {
+                long reversed = Integer.reverse(bytes[w * 8 + b] & 0xFF) >>> 24;
+                word |= reversed << (b * 8);
+            }
+            if (word != 0) {
+                orLocalWord(w, word);
+            }
+        }
+    }
+
+    private byte[] toRedisBytes() {
+        byte[] bytes = new byte[(int) (bitSize / 8)];
+        for (int w = 0; w < words.length(); w++) {
+            long word = words.get(w);
+            for (int b = 0; b < 8; b++) {
+                int part = (int) (word >>> (b * 8)) & 0xFF;
+                bytes[w * 8 + b] = (byte) (Integer.reverse(part) >>> 24);
+            }
+        }
+        return bytes;
+    }
+
+    private void setLocalBit(long offset) {
+        orLocalWord((int) (offset >>> 6), 1L << (offset & 63));
+    }
+
+    private void orLocalWord(int index, long mask) {
+        long old;
+        do {
+            old = words.get(index);
+            if ((old | mask) == old) {
+                return;
+            }
+        } while (!words.compareAndSet(index, old, old | mask));
+    }
+
+    //双重哈希 g_i(x) = h1(x) + i*h2(x) 计算k个位下标
+    private long[] offsets(Object id) {
+        long[] hash = MurmurHash.hash128(id.toString().getBytes(StandardCharsets.UTF_8));
+        long[] offsets = new long[hashCount];
+        long combined = hash[0];
+        for (int i = 0; i < hashCount; i++) {
+            offsets[i] = Math.floorMod(combined, bitSize);
+            combined += hash[1];
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,134 @@
+package com.almond.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * redis熔断器,redis变慢或宕机时快速失败,不再让每个请求都等到命令超时
+ * CLOSED:正常访问,连续失败达到阈值后进入OPEN
+ * OPEN:直接拒绝,经过open-duration后进入HALF_OPEN
+ * HALF_OPEN:只放行一个探测请求,成功则恢复CLOSED,失败则重新OPEN
+ */
+@Slf4j
+@Component
+public class RedisCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openUntil;
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    public RedisCircuitBreaker(MeterRegistry meterRegistry,
+                               @Value("${almond.redis.breaker.failure-threshold:5}") int failureThreshold,
+                               @Value("${almond.redis.breaker.open-duration:5s}") Duration openDuration) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openDuration.toMillis();
+        //指标 redis.breaker.state 0:CLOSED 1:OPEN 2:HALF_OPEN
+        meterRegistry.gauge("redis.breaker.state", state, s -> s.get().ordinal());
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return 当前是否允许访问redis,OPEN到期后只有第一个调用者拿到探测机会
+     */
+    public boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (current == State.OPEN && now >= openUntil) {
+            return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        }
+        //探测请求迟迟没有结果(例如被嵌套调用拒绝),再放行一个探测请求,避免一直停留在HALF_OPEN
+        if (current == State.HALF_OPEN && now >= openUntil + openMillis) {
+            openUntil = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 在熔断器保护下访问redis
+     * redis的访问异常(连接失败、命令超时等)计为失败,转换为RedisUnavailableException抛出
+     * @throws RedisUnavailableException 熔断中或本次访问失败
+     */
+    public <T> T call(Supplier<T> action) {
+        if (!allowRequest()) {
+            throw new RedisUnavailableException("redis熔断中", null);
+        }
+        try {
+            T result = action.get();
+            onSuccess();
+            return result;
+        } catch (DataAccessException e) {
+            onFailure(e);
+            throw new RedisUnavailableException("访问redis失败", e);
+        } catch (RedisUnavailableException e) {
+            //嵌套调用内层已经记录过
+            throw e;
+        } catch (RuntimeException e) {
+            //redis有响应,只是业务处理出错,不影响熔断状态
+            onSuccess();
+            throw e;
+        }
+    }
+
+    /**
+     * 在熔断器保护下执行写操作,熔断中或失败时放弃本次写入
+     * @return 是否写入成功
+     */
+    public boolean runQuietly(Runnable action) {
+        try {
+            call(() -> {
+                action.run();
+                return null;
+            });
+            return true;
+        } catch (RedisUnavailableException e) {
+            return false;
+        }
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state.get() != State.CLOSED && state.getAndSet(State.CLOSED) != State.CLOSED) {
+            log.info("redis已恢复,熔断器关闭");
+        }
+    }
+
+    private void onFailure(Exception e) {
+        if (state.get() == State.HALF_OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openUntil = System.currentTimeMillis() + openMillis;
+            if (state.getAndSet(State.OPEN) != State.OPEN) {
+                log.warn("redis访问连续失败,熔断{}ms:{}", openMillis, e.toString());
+            }
+        }
+    }
+
+    /**
+     * redis不可用(熔断中或本次访问失败)
+     */
+    public static class RedisUnavailableException extends RuntimeException {
+        public RedisUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
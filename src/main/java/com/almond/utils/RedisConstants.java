@@ -11,13 +11,46 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    //批量查询使用的店铺缓存,直接存放店铺对象(不带逻辑过期),与CACHE_SHOP_KEY分开存放
+    public static final String CACHE_SHOP_BATCH_KEY = "cache:shop:batch:";
+
+    //用户公开信息(UserDTO)缓存
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
     public static final String CACHE_SHOPTYPE_KEY = "cache:shopType:";
     public static final Long CACHE_SHOPTYPE_TTL = 24L;
 
+    //缓存失效广播频道,用于清除各节点的本地一级缓存
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    //布隆过滤器位图,以及新增元素的广播频道
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_CHANNEL = "bloom:add";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    //分片库存的分片数,不存在表示不分片
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    //秒杀时间窗口与每人限购数量(hash),由seckill.lua校验
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    //已购买用户集合
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //已购买用户位图,seckill:buyers:{id}:{userId/2^20},位偏移为userId%2^20
+    public static final String SECKILL_BUYERS_KEY = "seckill:buyers:";
+    //秒杀券售罄、补充库存的广播频道,消息为优惠券id,频道名与seckill.lua一致
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    //秒杀订单消息队列以及消费者组,seckill.lua向该stream写入订单
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    //多次处理失败的订单消息
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    //雪花算法的worker id租约,值为持有租约的实例;以及各worker id最后使用的时间戳(hash)
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_TIME_KEY = "id:worker:time";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
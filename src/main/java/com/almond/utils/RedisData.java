@@ -5,7 +5,8 @@ import lombok.Data;
 import java.time.LocalDateTime;
 
 @Data
-public class RedisData {
+public class RedisData<T> {
     private LocalDateTime expireTime; //逻辑过期时间
-    private Object data; //存放真正的对象
+    private T data; //存放真正的对象
+    private Long rebuildMillis; //上次从数据库重建的耗时(毫秒),用于概率提前刷新
 }
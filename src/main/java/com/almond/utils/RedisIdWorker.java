@@ -1,34 +1,172 @@
 package com.almond.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局唯一id: 31位时间戳(秒) + 32位序列号,序列号来自redis中每天一个的自增key
+ * 号段模式(segment-step大于1):节点用INCRBY一次预留step个序列号,在本地AtomicLong中分配,
+ * 当前号段用掉80%时异步预留下一段,每个节点每step个id才访问一次redis
+ * 号段内id的时间戳取预留时的时间(号段最多使用1分钟),序列号在当天的key中全局唯一,
+ * 因此各节点的id不会重复,同一节点的id单调递增
+ */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     private static final long NUM_BIT = 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    //当前号段剩余的比例低于该值时预留下一段
+    private static final double PREFETCH_RATIO = 0.2;
+    //号段最长使用时间,避免请求少时id中的时间戳与实际时间相差太久
+    private static final long SEGMENT_MAX_AGE_MILLIS = 60_000;
 
     private StringRedisTemplate stringRedisTemplate;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    private final long step;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${almond.id.segment-step:1000}") long step) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.step = Math.max(step, 1);
     }
 
+    @Override
     public long nextId(String keyPrefix){
+        if (step > 1) {
+            return buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextId();
+        }
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long second = now.toEpochSecond(ZoneOffset.UTC);
         long timeStamp = second - BEGIN_TIMESTAMP;
         //2.生成序列号num
         // 每天生成一个key,这样避免所有的自增id都在一个key里达到上限值
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 设置序号自增长,如果对应键没有值会自动创建一个,并返回给num
         long num = stringRedisTemplate.opsForValue().increment("inc:" + keyPrefix + ":" + date);
         return timeStamp << NUM_BIT | num;
     }
+
+    /**
+     * 从redis预留一段序列号
+     */
+    private Segment fetchSegment(String keyPrefix) {
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String date = now.format(DATE_FORMATTER);
+        long end = stringRedisTemplate.opsForValue().increment("inc:" + keyPrefix + ":" + date, step);
+        return new Segment(timeStamp << NUM_BIT, end - step + 1, end,
+                System.currentTimeMillis() + SEGMENT_MAX_AGE_MILLIS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * 一段序列号[start,end],id = base | 序列号
+     */
+    private static class Segment {
+        final long base;
+        final long end;
+        final long prefetchAt;
+        final long expireAt;
+        final AtomicLong cursor;
+        //预留中的下一段,只有本段用完时才会使用,保证下一段一定在本段之后预留
+        volatile CompletableFuture<Segment> next;
+
+        Segment(long base, long start, long end, long expireAt) {
+            this.base = base;
+            this.end = end;
+            this.expireAt = expireAt;
+            this.prefetchAt = end - (long) ((end - start + 1) * PREFETCH_RATIO);
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 一个key前缀的当前号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long nextId() {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && System.currentTimeMillis() < segment.expireAt) {
+                    long num = segment.cursor.getAndIncrement();
+                    if (num <= segment.end) {
+                        if (num == segment.prefetchAt) {
+                            prefetch(segment);
+                        }
+                        return segment.base | num;
+                    }
+                }
+                switchSegment(segment);
+            }
+        }
+
+        //每个号段只有取到prefetchAt的那个线程触发一次
+        private void prefetch(Segment segment) {
+            try {
+                segment.next = CompletableFuture.supplyAsync(() -> fetchSegment(keyPrefix), prefetchExecutor);
+            } catch (Exception e) {
+                //停机中,用完后同步预留
+                log.warn("预留下一号段失败,keyPrefix:{}", keyPrefix, e);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted) {
+            if (current != exhausted) {
+                //其他线程已经切换
+                return;
+            }
+            CompletableFuture<Segment> future = exhausted == null ? null : exhausted.next;
+            Segment segment = null;
+            if (future != null) {
+                try {
+                    segment = future.join();
+                    if (System.currentTimeMillis() >= segment.expireAt) {
+                        segment = null;
+                    }
+                } catch (Exception e) {
+                    log.warn("异步预留号段失败,改为同步预留,keyPrefix:{}", keyPrefix, e);
+                }
+            }
+            if (segment == null) {
+                //第一次使用、预留失败或者预留的号段已过期,同步访问redis,失败时异常抛给调用方
+                segment = fetchSegment(keyPrefix);
+            }
+            current = segment;
+        }
+    }
 }
@@ -3,6 +3,8 @@ package com.almond.utils;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.almond.dto.UserDTO;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
@@ -11,6 +13,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import static com.almond.utils.RedisCircuitBreaker.RedisUnavailableException;
 import static com.almond.utils.RedisConstants.LOGIN_USER_KEY;
 import static com.almond.utils.RedisConstants.LOGIN_USER_TTL;
 
@@ -18,9 +21,18 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
+    private RedisCircuitBreaker breaker;
+
+    //最近校验通过的token,redis不可用时用来识别已登录用户,最长保留一个token有效期
+    private final Cache<String, UserDTO> tokenSnapshot = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(LOGIN_USER_TTL, TimeUnit.MINUTES)
+            .build();
+
     //拦截器是在容器创建之前创建,没法直接注入StringRedisTemplate,因此在注册类中注入并传给拦截器
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, RedisCircuitBreaker breaker) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.breaker = breaker;
     }
 
     @Override
@@ -30,7 +42,17 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if(StrUtil.isBlank(token)) return true;
         //2.获取redis中的用户
         String tokenKey = LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(tokenKey);
+        Map<Object, Object> userMap;
+        try {
+            userMap = breaker.call(() -> stringRedisTemplate.opsForHash().entries(tokenKey));
+        } catch (RedisUnavailableException e) {
+            //redis不可用,使用本地快照识别用户,不刷新有效期
+            UserDTO snapshot = tokenSnapshot.getIfPresent(token);
+            if(snapshot != null) {
+                UserHolder.saveUser(snapshot);
+            }
+            return true;
+        }
         //3.判断用户是否存在,如果不存在则拦截用户
         if(userMap.isEmpty()) {
             //未登录直接放行
@@ -40,8 +62,9 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
         //5.存在,保存用户到ThreadLocal中,Tomcat为每个请求单独创建一个线程区存放变量,以避免并发
         UserHolder.saveUser(userDTO);
-        //6.刷新token有效时间
-        stringRedisTemplate.expire(tokenKey, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        tokenSnapshot.put(token, userDTO);
+        //6.刷新token有效时间,失败时不影响本次请求
+        breaker.runQuietly(() -> stringRedisTemplate.expire(tokenKey, LOGIN_USER_TTL, TimeUnit.MINUTES));
         //8.放行
         return true;
     }
@@ -0,0 +1,310 @@
+package com.almond.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.almond.utils.RedisConstants.SECKILL_META_KEY;
+
+/**
+ * 秒杀准入控制,请求数远大于库存时,超出部分在执行秒杀脚本之前就快速拒绝
+ * 本节点:每张秒杀券一个令牌桶,限制本节点每秒放行的请求数,保护节点自身
+ * 全局:每个时间窗口内所有节点放行的请求数不超过剩余库存的stock-multiple倍(seckill_admission.lua),
+ * 节点一次申请chunk-size个名额在本地使用,大部分请求不需要访问redis;名额用完后到下一个窗口之前直接拒绝
+ * 每张秒杀券可以在seckill:meta:{id}中单独设置rate、burst、multiple,没有设置时使用配置文件中的默认值
+ * 只为seckill:meta:{id}存在且未结束的秒杀券保存准入状态,其他请求直接放行,由秒杀脚本拒绝;秒杀结束或meta被清理后移除
+ * 租约模式下本地库存已经挡住了超出库存的请求,不再使用全局限制
+ * redis不可用时不做全局限制,由秒杀脚本的熔断快速失败
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+    static {
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("seckill_admission.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${almond.seckill.admission.enabled:true}")
+    private boolean enabled;
+
+    //本节点每张秒杀券每秒放行的请求数,0表示不限制
+    @Value("${almond.seckill.admission.rate:2000}")
+    private long defaultRate;
+
+    //令牌桶容量,允许的瞬时突发请求数
+    @Value("${almond.seckill.admission.burst:200}")
+    private long defaultBurst;
+
+    //每个窗口全局放行的请求数 = 剩余库存 * multiple,0表示不限制
+    @Value("${almond.seckill.admission.stock-multiple:3}")
+    private long defaultMultiple;
+
+    //全局限制的时间窗口(毫秒)
+    @Value("${almond.seckill.admission.window:1000}")
+    private long window;
+
+    //库存为0时每个窗口仍放行的请求数
+    @Value("${almond.seckill.admission.min-permits:100}")
+    private long minPermits;
+
+    //每次从redis申请的名额
+    @Value("${almond.seckill.admission.chunk-size:20}")
+    private long chunkSize;
+
+    //重新读取单独设置的间隔(毫秒)
+    @Value("${almond.seckill.admission.refresh-interval:5000}")
+    private long refreshInterval;
+
+    @Value("${almond.seckill.lease.enabled:false}")
+    private boolean leaseEnabled;
+
+    private final Map<Long, Gate> gates = new ConcurrentHashMap<>();
+
+    private final Counter localRejected;
+    private final Counter globalRejected;
+
+    public SeckillAdmission(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.localRejected = meterRegistry.counter("seckill.admission.rejected", "limit", "local");
+        this.globalRejected = meterRegistry.counter("seckill.admission.rejected", "limit", "global");
+    }
+
+    /**
+     * @return 是否放行,拒绝时记录一次拒绝
+     */
+    public boolean tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+        Gate gate = gates.get(voucherId);
+        if (gate == null) {
+            gate = loadGate(voucherId);
+            if (gate == null) {
+                return true;
+            }
+        } else {
+            gate.refreshIfDue();
+        }
+        TokenBucket bucket = gate.bucket;
+        if (bucket != null && !bucket.tryAcquire()) {
+            localRejected.increment();
+            return false;
+        }
+        if (leaseEnabled || gate.multiple <= 0 || gate.acquireGlobal()) {
+            return true;
+        }
+        globalRejected.increment();
+        return false;
+    }
+
+    /**
+     * 读取秒杀券的设置并创建准入状态
+     * @return 秒杀券不存在、已结束或读取失败时为null,不保存
+     */
+    private Gate loadGate(Long voucherId) {
+        List<Object> values;
+        try {
+            values = readMeta(voucherId);
+        } catch (Exception e) {
+            log.debug("读取秒杀券准入设置失败,voucherId:{},{}", voucherId, e.getMessage());
+            return null;
+        }
+        Gate gate = new Gate(voucherId);
+        if (!gate.apply(values)) {
+            return null;
+        }
+        Gate existing = gates.putIfAbsent(voucherId, gate);
+        return existing == null ? gate : existing;
+    }
+
+    private List<Object> readMeta(Long voucherId) {
+        return stringRedisTemplate.opsForHash().multiGet(SECKILL_META_KEY + voucherId, Arrays.asList(
+                SeckillStocks.META_END, SeckillStocks.META_RATE, SeckillStocks.META_BURST, SeckillStocks.META_MULTIPLE));
+    }
+
+    /**
+     * 定时移除已结束的秒杀券,没有请求的秒杀券不会再读取设置
+     */
+    @Scheduled(fixedDelayString = "${almond.seckill.admission.refresh-interval:5000}")
+    public void evictEnded() {
+        long now = System.currentTimeMillis();
+        gates.values().removeIf(gate -> now > gate.endMillis);
+    }
+
+    /**
+     * 令牌桶,按GCRA实现:记录下一个令牌的理论到达时间,无锁
+     */
+    static class TokenBucket {
+        final long rate;
+        final long burst;
+        //生成一个令牌的时间
+        private final long intervalNanos;
+        //桶满时理论到达时间最多超前当前时间的量
+        private final long toleranceNanos;
+        private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+        TokenBucket(long rate, long burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.intervalNanos = Math.max(TimeUnit.SECONDS.toNanos(1) / rate, 1);
+            this.toleranceNanos = intervalNanos * Math.max(burst, 1);
+        }
+
+        boolean tryAcquire() {
+            long now = System.nanoTime();
+            while (true) {
+                long current = tat.get();
+                long next = Math.max(current, now) + intervalNanos;
+                if (next - now > toleranceNanos) {
+                    return false;
+                }
+                if (tat.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 一张秒杀券在本节点的准入状态
+     */
+    private class Gate {
+        final Long voucherId;
+        volatile TokenBucket bucket;
+        volatile long multiple = defaultMultiple;
+        //秒杀结束时间(毫秒时间戳)
+        volatile long endMillis;
+        //下一次读取单独设置的时间
+        private final AtomicLong nextRefresh = new AtomicLong(System.currentTimeMillis() + refreshInterval);
+        //本地剩余的全局名额及其所属窗口的结束时间
+        private final AtomicLong permits = new AtomicLong();
+        private volatile long permitsExpireAt;
+        //本窗口的全局名额已用完,在此之前直接拒绝
+        private volatile long exhaustedUntil;
+
+        Gate(Long voucherId) {
+            this.voucherId = voucherId;
+        }
+
+        //到期时由一个线程读取,其他线程继续使用旧的设置;秒杀券已不存在或已结束时移除
+        void refreshIfDue() {
+            long now = System.currentTimeMillis();
+            long due = nextRefresh.get();
+            if (now < due || !nextRefresh.compareAndSet(due, now + refreshInterval)) {
+                return;
+            }
+            try {
+                if (!apply(readMeta(voucherId))) {
+                    gates.remove(voucherId, this);
+                }
+            } catch (Exception e) {
+                log.debug("读取秒杀券准入设置失败,voucherId:{},{}", voucherId, e.getMessage());
+            }
+        }
+
+        /**
+         * @param values end、rate、burst、multiple
+         * @return 秒杀券是否存在且未结束
+         */
+        boolean apply(List<Object> values) {
+            if (values.get(0) == null) {
+                return false;
+            }
+            endMillis = parse(values.get(0), 0);
+            apply(parse(values.get(1), defaultRate), parse(values.get(2), defaultBurst),
+                    parse(values.get(3), defaultMultiple));
+            return System.currentTimeMillis() <= endMillis;
+        }
+
+        private void apply(long rate, long burst, long multiple) {
+            TokenBucket current = bucket;
+            if (rate <= 0) {
+                bucket = null;
+            } else if (current == null || current.rate != rate || current.burst != burst) {
+                bucket = new TokenBucket(rate, burst);
+            }
+            this.multiple = multiple;
+        }
+
+        boolean acquireGlobal() {
+            if (takeLocal()) {
+                return true;
+            }
+            if (System.currentTimeMillis() < exhaustedUntil) {
+                return false;
+            }
+            synchronized (this) {
+                //等待期间其他线程可能已经申请到名额
+                if (takeLocal()) {
+                    return true;
+                }
+                long now = System.currentTimeMillis();
+                if (now < exhaustedUntil) {
+                    return false;
+                }
+                Long granted;
+                try {
+                    granted = stringRedisTemplate.execute(ADMIT_SCRIPT, Collections.emptyList(),
+                            voucherId.toString(), String.valueOf(chunkSize), String.valueOf(multiple),
+                            String.valueOf(window), String.valueOf(minPermits));
+                } catch (Exception e) {
+                    log.debug("申请秒杀准入名额失败,voucherId:{},{}", voucherId, e.getMessage());
+                    return true;
+                }
+                if (granted == null || granted <= 0) {
+                    exhaustedUntil = now + (granted == null ? window : -granted);
+                    return false;
+                }
+                //名额只在所属窗口内有效,本地时钟与redis不一致时最多晚一个窗口过期
+                permitsExpireAt = now + window;
+                permits.set(granted - 1);
+                return true;
+            }
+        }
+
+        private boolean takeLocal() {
+            if (System.currentTimeMillis() >= permitsExpireAt) {
+                return false;
+            }
+            while (true) {
+                long left = permits.get();
+                if (left <= 0) {
+                    return false;
+                }
+                if (permits.compareAndSet(left, left - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static long parse(Object value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package com.almond.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.almond.entity.SeckillVoucher;
+import com.almond.entity.VoucherOrder;
+import com.almond.mapper.SeckillVoucherMapper;
+import com.almond.mapper.VoucherOrderMapper;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.almond.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存对账:比较redis与数据库中每张秒杀券的库存和已购买用户,修复或报告不一致
+ * 正常情况下 redis已购买用户 = 已落库订单 + stream中处理中的订单 + 死信订单,
+ * redis库存 = 数据库库存 - 处理中的订单 - 死信订单,与消费进度无关
+ * 每轮用SCAN找出redis中的秒杀券,轮流抽取sample-size张对账;订单积压超过scan-limit时跳过本轮
+ * 读取redis和数据库不是原子的,秒杀进行中的差异可能只是读取时刻不同,
+ * 只有连续两轮读到完全相同的状态(期间没有新的订单)时才确认差异并修复
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    //KEYS:各分片库存key ARGV[1]:对账时读到的库存之和 ARGV[2]:调整量
+    //库存在对账期间发生变化时不调整,返回0;增加的库存加到第一个分片,减少时依次从各分片扣除
+    private static final DefaultRedisScript<Long> ADJUST_SCRIPT = new DefaultRedisScript<>(
+            "local total = 0 " +
+            "for i = 1, #KEYS do total = total + tonumber(redis.call('get', KEYS[i]) or '0') end " +
+            "if total ~= tonumber(ARGV[1]) then return 0 end " +
+            "local delta = tonumber(ARGV[2]) " +
+            "if delta > 0 then redis.call('incrby', KEYS[1], delta) return 1 end " +
+            "for i = 1, #KEYS do " +
+            "local take = math.min(tonumber(redis.call('get', KEYS[i]) or '0'), -delta) " +
+            "if take > 0 then redis.call('incrby', KEYS[i], -take) delta = delta + take end " +
+            "end " +
+            "return 1", Long.class);
+
+    //从数据库恢复已购买用户时每页的订单数
+    private static final int RESTORE_PAGE_SIZE = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${almond.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+
+    //false时只报告不修复
+    @Value("${almond.seckill.reconcile.repair:true}")
+    private boolean repair;
+
+    //每轮对账的秒杀券数量
+    @Value("${almond.seckill.reconcile.sample-size:20}")
+    private int sampleSize;
+
+    //每个stream最多读取的处理中订单数,超过时跳过本轮
+    @Value("${almond.seckill.reconcile.scan-limit:10000}")
+    private int scanLimit;
+
+    @Value("${almond.seckill.order.partitions:1}")
+    private int partitions;
+
+    @Value("${almond.seckill.buyer-mode:bitmap}")
+    private String buyerMode;
+
+    //租约模式下节点本地持有的库存不在redis中,redis库存偏少是正常的
+    @Value("${almond.seckill.lease.enabled:false}")
+    private boolean leaseEnabled;
+
+    //上一轮对账的秒杀券id,下一轮从其后继续
+    private long lastVoucherId;
+
+    //最近一次对账发现差异的秒杀券
+    private final Map<Long, Report> reports = new ConcurrentHashMap<>();
+
+    /**
+     * 一张秒杀券的对账结果
+     */
+    @Data
+    public static class Report {
+        private final Long voucherId;
+        //redis剩余库存(各分片之和)
+        private final long redisStock;
+        //redis记录的已购买用户数(集合与位图之和)
+        private final long buyers;
+        private final long dbStock;
+        private final long orders;
+        //已写入stream尚未确认的订单(pending与未投递)
+        private final long inFlight;
+        private final long deadLetters;
+        //redis库存 - 预期库存,正数会多卖(多出的订单落库时库存不足),负数会少卖
+        private long stockDrift;
+        //redis已购买用户 - 已落库及处理中的订单,正数为没有订单的购买记录,负数为缺失的购买记录(用户可以重复下单)
+        private long buyerDrift;
+        //连续两轮状态相同,差异不是读取时刻不同造成的
+        private boolean confirmed;
+        private String repaired;
+        private LocalDateTime checkTime = LocalDateTime.now();
+
+        boolean sameState(Report other) {
+            return other != null && redisStock == other.redisStock && buyers == other.buyers
+                    && dbStock == other.dbStock && orders == other.orders
+                    && inFlight == other.inFlight && deadLetters == other.deadLetters;
+        }
+    }
+
+    public List<Report> getReports() {
+        return new ArrayList<>(reports.values());
+    }
+
+    @Scheduled(fixedDelayString = "${almond.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            //先统计处理中的订单,再读redis和数据库
+            Map<Long, Long> inFlight = new HashMap<>();
+            for (String stream : SeckillStocks.orderStreams(partitions, scanKeys(SECKILL_ORDER_STREAM + ".*"))) {
+                if (!countInFlight(stream, inFlight)) {
+                    skip("订单stream " + stream + " 积压超过" + scanLimit + "条");
+                    return;
+                }
+            }
+            Map<Long, Long> deadLetters = new HashMap<>();
+            List<MapRecord<String, Object, Object>> dlq = stringRedisTemplate.opsForStream().range(
+                    SECKILL_ORDER_DLQ, Range.unbounded(), Limit.limit().count(scanLimit + 1));
+            if (dlq != null && dlq.size() > scanLimit) {
+                skip("死信stream超过" + scanLimit + "条");
+                return;
+            }
+            if (dlq != null) {
+                dlq.forEach(record -> countVoucher(record.getValue().get("voucherId"), deadLetters));
+            }
+            List<Long> vouchers = sample();
+            if (vouchers.isEmpty()) {
+                return;
+            }
+            Map<Long, List<String>> buyerKeys = new HashMap<>();
+            for (String key : scanKeys(SECKILL_BUYERS_KEY + "*")) {
+                String id = StrUtil.subBetween(key, SECKILL_BUYERS_KEY, ":");
+                if (StrUtil.isNumeric(id)) {
+                    buyerKeys.computeIfAbsent(Long.valueOf(id), k -> new ArrayList<>()).add(key);
+                }
+            }
+            for (Long voucherId : vouchers) {
+                try {
+                    reconcile(voucherId, inFlight.getOrDefault(voucherId, 0L),
+                            deadLetters.getOrDefault(voucherId, 0L),
+                            buyerKeys.getOrDefault(voucherId, Collections.emptyList()));
+                } catch (Exception e) {
+                    log.warn("秒杀券对账失败,voucherId:{}", voucherId, e);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("秒杀库存对账失败", e);
+        }
+    }
+
+    private void skip(String reason) {
+        meterRegistry.counter("seckill.reconcile.skipped").increment();
+        log.info("{},跳过本轮秒杀库存对账", reason);
+    }
+
+    /**
+     * 本轮对账的秒杀券:上一轮有未确认差异的,以及按id轮流抽取的其余秒杀券,共sample-size张
+     */
+    private List<Long> sample() {
+        TreeSet<Long> all = new TreeSet<>();
+        for (String key : scanKeys(SECKILL_META_KEY + "*")) {
+            String id = key.substring(SECKILL_META_KEY.length());
+            if (StrUtil.isNumeric(id)) {
+                all.add(Long.valueOf(id));
+            }
+        }
+        reports.keySet().retainAll(all);
+        List<Long> sample = new ArrayList<>();
+        reports.forEach((id, report) -> {
+            if (!report.isConfirmed() && sample.size() < sampleSize) {
+                sample.add(id);
+            }
+        });
+        List<Long> ordered = new ArrayList<>(all.tailSet(lastVoucherId, false));
+        ordered.addAll(all.headSet(lastVoucherId, true));
+        for (Long id : ordered) {
+            if (sample.size() >= sampleSize) {
+                break;
+            }
+            if (!sample.contains(id)) {
+                sample.add(id);
+                lastVoucherId = id;
+            }
+        }
+        return sample;
+    }
+
+    private void reconcile(Long voucherId, long inFlight, long deadLetters, List<String> buyerKeys) {
+        //1.redis库存和已购买用户
+        List<String> stockKeys = stockKeys(voucherId);
+        long redisStock = 0;
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+        if (stocks != null) {
+            for (String stock : stocks) {
+                redisStock += stock == null ? 0 : Long.parseLong(stock);
+            }
+        }
+        Long members = stringRedisTemplate.opsForSet().size(SECKILL_ORDER_KEY + voucherId);
+        long buyers = members == null ? 0 : members;
+        for (String key : buyerKeys) {
+            Long bits = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.bitCount(key.getBytes(StandardCharsets.UTF_8)));
+            buyers += bits == null ? 0 : bits;
+        }
+        //2.数据库库存和订单数,按voucher_id统计订单数需要索引idx_voucher_id
+        SeckillVoucher voucher = seckillVoucherMapper.selectById(voucherId);
+        if (voucher == null) {
+            return;
+        }
+        Integer orders = voucherOrderMapper.selectCount(
+                new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+        Report report = new Report(voucherId, redisStock, buyers, voucher.getStock(),
+                orders == null ? 0 : orders, inFlight, deadLetters);
+        report.setStockDrift(redisStock - Math.max(voucher.getStock() - inFlight - deadLetters, 0));
+        report.setBuyerDrift(buyers - report.getOrders() - inFlight - deadLetters);
+        if (leaseEnabled && report.getStockDrift() < 0) {
+            report.setStockDrift(0);
+        }
+        Report last = reports.get(voucherId);
+        if (report.getStockDrift() == 0 && report.getBuyerDrift() == 0) {
+            reports.remove(voucherId);
+            return;
+        }
+        report.setConfirmed(report.sameState(last));
+        reports.put(voucherId, report);
+        if (!report.isConfirmed()) {
+            //等下一轮确认
+            log.debug("秒杀券对账发现差异,待确认:{}", report);
+            return;
+        }
+        if (report.getStockDrift() != 0) {
+            meterRegistry.counter("seckill.reconcile.drift", "kind", "stock").increment();
+        }
+        if (report.getBuyerDrift() != 0) {
+            meterRegistry.counter("seckill.reconcile.drift", "kind", "buyer").increment();
+        }
+        log.warn("秒杀券redis与数据库不一致:{}", report);
+        if (repair) {
+            repair(report, stockKeys);
+        }
+    }
+
+    private void repair(Report report, List<String> stockKeys) {
+        List<String> repaired = new ArrayList<>();
+        Long voucherId = report.getVoucherId();
+        if (report.getStockDrift() != 0) {
+            Long adjusted = stringRedisTemplate.execute(ADJUST_SCRIPT, stockKeys,
+                    String.valueOf(report.getRedisStock()), String.valueOf(-report.getStockDrift()));
+            if (adjusted != null && adjusted == 1) {
+                repaired.add("stock");
+                meterRegistry.counter("seckill.reconcile.repair", "kind", "stock").increment();
+                log.warn("已调整redis库存,voucherId:{},调整量:{}", voucherId, -report.getStockDrift());
+                if (report.getStockDrift() < 0) {
+                    //与补充库存相同,通知各节点清除售罄标记
+                    stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+                }
+            }
+        }
+        if (report.getBuyerDrift() < 0) {
+            //redis丢失了购买记录(例如主从切换),按数据库订单补回,防止重复下单;写入是幂等的
+            long restored = restoreBuyers(voucherId);
+            repaired.add("buyer");
+            meterRegistry.counter("seckill.reconcile.repair", "kind", "buyer").increment();
+            log.warn("已按{}条订单补回redis购买记录,voucherId:{}", restored, voucherId);
+        }
+        //没有订单的购买记录无法低成本定位到用户,只报告
+        report.setRepaired(String.join(",", repaired));
+    }
+
+    private long restoreBuyers(Long voucherId) {
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id").eq("voucher_id", voucherId).gt("id", lastId)
+                    .orderByAsc("id").last("limit " + RESTORE_PAGE_SIZE));
+            if (orders.isEmpty()) {
+                return total;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    if ("bitmap".equals(buyerMode)) {
+                        conn.setBit(SeckillStocks.buyerKey(voucherId, order.getUserId()),
+                                SeckillStocks.buyerOffset(order.getUserId()), true);
+                    } else {
+                        conn.sAdd(SECKILL_ORDER_KEY + voucherId, order.getUserId().toString());
+                    }
+                }
+                return null;
+            });
+            total += orders.size();
+            lastId = orders.get(orders.size() - 1).getId();
+            if (orders.size() < RESTORE_PAGE_SIZE) {
+                return total;
+            }
+        }
+    }
+
+    /**
+     * 按优惠券统计一个stream中已写入、尚未确认的订单:pending中的消息以及最后投递的id之后的消息
+     * @return 消息数超过scan-limit时返回false
+     */
+    private boolean countInFlight(String stream, Map<Long, Long> counts) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+            return true;
+        }
+        //消费者组还没有创建时全部消息都未投递
+        RecordId lastDelivered = RecordId.of("0-0");
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        for (int i = 0; i < groups.size(); i++) {
+            if (SECKILL_ORDER_GROUP.equals(groups.get(i).groupName())) {
+                lastDelivered = RecordId.of(groups.get(i).lastDeliveredId());
+            }
+        }
+        Set<String> pendingIds = new HashSet<>();
+        Range<String> range = Range.of(Range.Bound.exclusive(lastDelivered.getValue()), Range.Bound.unbounded());
+        if (!"0-0".equals(lastDelivered.getValue())) {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, SECKILL_ORDER_GROUP);
+            if (summary != null && summary.getTotalPendingMessages() > scanLimit) {
+                return false;
+            }
+            if (summary != null && summary.getTotalPendingMessages() > 0) {
+                for (PendingMessage message : stringRedisTemplate.opsForStream().pending(stream, SECKILL_ORDER_GROUP,
+                        Range.unbounded(), summary.getTotalPendingMessages())) {
+                    pendingIds.add(message.getIdAsString());
+                }
+                range = Range.of(Range.Bound.inclusive(summary.minMessageId()), Range.Bound.unbounded());
+            }
+        }
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                stream, range, Limit.limit().count(scanLimit + 1));
+        if (records == null) {
+            return true;
+        }
+        if (records.size() > scanLimit) {
+            return false;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            //pending之后、最后投递的id之前的消息已经确认,只是还没有被裁剪
+            if (compare(record.getId(), lastDelivered) <= 0 && !pendingIds.contains(record.getId().getValue())) {
+                continue;
+            }
+            countVoucher(record.getValue().get("voucherId"), counts);
+        }
+        return true;
+    }
+
+    private static void countVoucher(Object voucherId, Map<Long, Long> counts) {
+        String id = StrUtil.toStringOrNull(voucherId);
+        if (StrUtil.isNumeric(id)) {
+            counts.merge(Long.valueOf(id), 1L, Long::sum);
+        }
+    }
+
+    private static int compare(RecordId a, RecordId b) {
+        if (a.getTimestamp() != b.getTimestamp()) {
+            return Long.compare(a.getTimestamp(), b.getTimestamp());
+        }
+        return Long.compare(a.getSequence(), b.getSequence());
+    }
+
+    private List<String> stockKeys(Long voucherId) {
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        int count = shards == null ? 1 : Integer.parseInt(shards);
+        if (count <= 1) {
+            return Collections.singletonList(SECKILL_STOCK_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(SECKILL_STOCK_KEY + voucherId + ":" + i);
+        }
+        return keys;
+    }
+
+    private List<String> scanKeys(String pattern) {
+        return stringRedisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            List<String> keys = new ArrayList<>();
+            try (Cursor<byte[]> cursor = connection.scan(
+                    ScanOptions.scanOptions().match(pattern).count(1000).build())) {
+                cursor.forEachRemaining(key -> keys.add(new String(key, StandardCharsets.UTF_8)));
+            }
+            return keys;
+        });
+    }
+}
@@ -0,0 +1,229 @@
+package com.almond.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.almond.entity.SeckillVoucher;
+import com.almond.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.almond.utils.RedisConstants.SECKILL_META_KEY;
+
+/**
+ * 秒杀库存租约:节点从redis库存中一次预留chunk-size个,在本地无锁扣减,用完再预留下一批
+ * 大量请求只在本地扣减库存,库存卖完后本地直接拒绝,不再访问redis
+ * 秒杀结束或节点停机时,把未用完的库存归还redis
+ * 节点宕机时未归还的库存会少卖,不会超卖
+ */
+@Slf4j
+@Component
+public class SeckillStockLeases {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("stock_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Value("${almond.seckill.lease.enabled:false}")
+    private boolean enabled;
+
+    //每次预留的库存数量
+    @Value("${almond.seckill.lease.chunk-size:50}")
+    private int chunkSize;
+
+    //redis库存为0后,间隔多久再尝试预留(其他节点可能归还库存)
+    @Value("${almond.seckill.lease.exhausted-recheck:1s}")
+    private Duration exhaustedRecheck;
+
+    //重新读取秒杀结束时间的间隔
+    @Value("${almond.seckill.lease.end-refresh:30s}")
+    private Duration endRefresh;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private static class Lease {
+        //本地剩余的库存
+        final AtomicInteger remaining = new AtomicInteger();
+        //秒杀结束时间(毫秒时间戳),结束后不再扣减,剩余库存归还redis
+        volatile long endMillis;
+        //下一次重新读取结束时间的时间,结束时间可能被修改
+        final AtomicLong refreshAt;
+        //redis库存已空,在此之前不再尝试预留
+        volatile long exhaustedUntil;
+
+        Lease(long endMillis, long refreshAt) {
+            this.endMillis = endMillis;
+            this.refreshAt = new AtomicLong(refreshAt);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 扣减一个库存,本地没有库存时从redis预留一批
+     * @return 是否扣减成功,false表示库存不足
+     */
+    public boolean tryAcquire(Long voucherId) {
+        //不存在的优惠券不缓存,创建后即可预留
+        Lease lease = leases.computeIfAbsent(voucherId, this::newLease);
+        if (lease == null) {
+            return false;
+        }
+        refreshEndIfDue(voucherId, lease);
+        if (System.currentTimeMillis() >= lease.endMillis) {
+            return false;
+        }
+        while (true) {
+            int n = lease.remaining.get();
+            if (n > 0) {
+                if (lease.remaining.compareAndSet(n, n - 1)) {
+                    return true;
+                }
+                continue;
+            }
+            if (System.currentTimeMillis() < lease.exhaustedUntil) {
+                return false;
+            }
+            //本地库存用完,只让一个线程去redis预留,其余线程等待后重新扣减
+            synchronized (lease) {
+                if (lease.remaining.get() > 0) {
+                    continue;
+                }
+                if (System.currentTimeMillis() < lease.exhaustedUntil) {
+                    return false;
+                }
+                Long got = stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                        voucherId.toString(), String.valueOf(chunkSize));
+                if (got == null || got <= 0) {
+                    lease.exhaustedUntil = System.currentTimeMillis() + exhaustedRecheck.toMillis();
+                    return false;
+                }
+                lease.remaining.addAndGet(got.intValue());
+            }
+        }
+    }
+
+    /**
+     * 退回一个已扣减的库存(例如用户重复下单),留在本地供后续请求使用
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.incrementAndGet();
+        }
+    }
+
+    /**
+     * 处理补充库存广播,允许立即重新预留,并重新读取结束时间(补充库存时可能同时延长了秒杀)
+     * @param message 优惠券id
+     */
+    public void onRestockMessage(String message) {
+        if (!StrUtil.isNumeric(message)) {
+            return;
+        }
+        Long voucherId = Long.valueOf(message);
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.exhaustedUntil = 0;
+            lease.refreshAt.set(0);
+            refreshEndIfDue(voucherId, lease);
+        }
+    }
+
+    private Lease newLease(Long voucherId) {
+        Long end = readEnd(voucherId);
+        if (end == null) {
+            return null;
+        }
+        return new Lease(end, System.currentTimeMillis() + endRefresh.toMillis());
+    }
+
+    //到期时由一个线程重新读取,其他线程继续使用旧的结束时间
+    private void refreshEndIfDue(Long voucherId, Lease lease) {
+        long now = System.currentTimeMillis();
+        long due = lease.refreshAt.get();
+        if (now < due || !lease.refreshAt.compareAndSet(due, now + endRefresh.toMillis())) {
+            return;
+        }
+        try {
+            Long end = readEnd(voucherId);
+            if (end != null) {
+                lease.endMillis = end;
+            }
+        } catch (Exception e) {
+            log.warn("读取秒杀结束时间失败,voucherId:{}", voucherId, e);
+        }
+    }
+
+    /**
+     * 优先读取redis中的时间窗口,没有时查询数据库
+     * @return 结束时间(毫秒时间戳),优惠券不存在时为null
+     */
+    private Long readEnd(Long voucherId) {
+        Object end = stringRedisTemplate.opsForHash().get(SECKILL_META_KEY + voucherId, SeckillStocks.META_END);
+        if (end != null) {
+            return Long.parseLong(end.toString());
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        return voucher == null ? null : SeckillStocks.toEpochMilli(voucher.getEndTime());
+    }
+
+    /**
+     * 定时归还已结束秒杀的剩余库存,租约本身保留,之后的请求直接拒绝,延长结束时间后重新读取时生效
+     */
+    @Scheduled(fixedDelayString = "${almond.seckill.lease.return-interval:10000}")
+    public void returnEndedLeases() {
+        long now = System.currentTimeMillis();
+        leases.forEach((voucherId, lease) -> {
+            if (now >= lease.endMillis) {
+                returnLease(voucherId, lease);
+            }
+        });
+    }
+
+    /**
+     * 停机时归还所有剩余库存
+     */
+    @PreDestroy
+    public void returnAll() {
+        leases.forEach(this::returnLease);
+        leases.clear();
+    }
+
+    private void returnLease(Long voucherId, Lease lease) {
+        int n = lease.remaining.getAndSet(0);
+        if (n <= 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), String.valueOf(-n));
+            log.info("归还秒杀库存租约,voucherId:{},数量:{}", voucherId, n);
+        } catch (Exception e) {
+            log.error("归还秒杀库存租约失败,voucherId:{},数量:{}", voucherId, n, e);
+        }
+    }
+}
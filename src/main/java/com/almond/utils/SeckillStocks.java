@@ -0,0 +1,146 @@
+package com.almond.utils;
+
+import cn.hutool.core.util.StrUtil;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.almond.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存在redis中的存放方式
+ * 不分片:seckill:stock:{id}
+ * 分片:seckill:shards:{id}存放分片数K,库存平均分到seckill:stock:{id}:0 ~ seckill:stock:{id}:K-1,
+ * seckill.lua按用户哈希选择分片,分片卖完后依次尝试其他分片
+ * 秒杀时间窗口与限购数量:seckill:meta:{id} (begin,end为毫秒时间戳),以及准入控制的单独设置
+ * 已购买用户:集合seckill:order:{id},或位图seckill:buyers:{id}:{userId/2^20}(由seckill.lua计算分段)
+ */
+public class SeckillStocks {
+
+    //分片售罄情况用位掩码在lua脚本和java之间传递,lua的bit库是32位
+    public static final int MAX_SHARDS = 31;
+
+    public static final String META_BEGIN = "begin";
+    public static final String META_END = "end";
+    public static final String META_LIMIT = "limit";
+    //准入控制的单独设置,没有设置时使用默认配置,见SeckillAdmission
+    public static final String META_RATE = "rate";
+    public static final String META_BURST = "burst";
+    public static final String META_MULTIPLE = "multiple";
+    //每人限购数量,订单表的唯一索引uk_user_voucher决定了目前只能是1
+    public static final int PER_USER_LIMIT = 1;
+    //已购买用户位图每段的位数,与seckill.lua一致
+    public static final int BUYER_SEGMENT_BITS = 20;
+
+    /**
+     * 库存分片后需要写入redis的键值
+     * @param voucherId 优惠券id
+     * @param stock 总库存
+     * @param shards 分片数,小于等于1时不分片
+     */
+    public static Map<String, String> stockEntries(Long voucherId, int stock, int shards) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        if (shards <= 1) {
+            entries.put(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return entries;
+        }
+        if (shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("库存分片数不能超过" + MAX_SHARDS);
+        }
+        entries.put(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        for (int i = 0; i < shards; i++) {
+            //余数分给前面的分片,各分片之和等于总库存
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            entries.put(SECKILL_STOCK_KEY + voucherId + ":" + i, String.valueOf(shardStock));
+        }
+        return entries;
+    }
+
+    /**
+     * 用户在分片间的哈希,同一用户总是优先访问同一个分片
+     */
+    public static int userHash(Long userId) {
+        long h = userId * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 33);
+    }
+
+    /**
+     * 秒杀时间窗口与限购数量,写入seckill:meta:{id}
+     */
+    public static Map<String, String> saleMeta(LocalDateTime beginTime, LocalDateTime endTime) {
+        Map<String, String> meta = new LinkedHashMap<>();
+        meta.put(META_BEGIN, String.valueOf(toEpochMilli(beginTime)));
+        meta.put(META_END, String.valueOf(toEpochMilli(endTime)));
+        meta.put(META_LIMIT, String.valueOf(PER_USER_LIMIT));
+        return meta;
+    }
+
+    public static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 位图模式下记录该用户的分段key
+     */
+    public static String buyerKey(Long voucherId, long userId) {
+        return SECKILL_BUYERS_KEY + voucherId + ":" + (userId >>> BUYER_SEGMENT_BITS);
+    }
+
+    /**
+     * 位图模式下该用户在分段中的位置
+     */
+    public static long buyerOffset(long userId) {
+        return userId & ((1L << BUYER_SEGMENT_BITS) - 1);
+    }
+
+    /**
+     * 全部订单stream:不分区的stream.orders以及各分区,切换分区数后旧的stream中可能还有消息
+     */
+    public static List<String> orderStreams(int partitions) {
+        List<String> streams = new ArrayList<>();
+        streams.add(SECKILL_ORDER_STREAM);
+        for (int i = 0; partitions > 1 && i < partitions; i++) {
+            streams.add(SECKILL_ORDER_STREAM + "." + i);
+        }
+        return streams;
+    }
+
+    /**
+     * 全部订单stream,加上redis中已有的其他分区(调小分区数之前写入的stream.orders.{n})
+     * @param keys 匹配stream.orders.*的key,死信stream、分区租约等其他key被忽略
+     */
+    public static List<String> orderStreams(int partitions, Collection<String> keys) {
+        List<String> streams = orderStreams(partitions);
+        String prefix = SECKILL_ORDER_STREAM + ".";
+        for (String key : keys) {
+            if (key.startsWith(prefix) && StrUtil.isNumeric(key.substring(prefix.length()))
+                    && !streams.contains(key)) {
+                streams.add(key);
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * 一张秒杀券在redis中的key(不含已购买用户位图的分段),秒杀结束后清理
+     * @param shards 分片数,小于等于1时不分片
+     */
+    public static List<String> allKeys(Long voucherId, int shards) {
+        List<String> keys = new ArrayList<>();
+        keys.add(SECKILL_META_KEY + voucherId);
+        keys.add(SECKILL_ORDER_KEY + voucherId);
+        keys.add(SECKILL_STOCK_KEY + voucherId);
+        keys.add(SECKILL_SHARDS_KEY + voucherId);
+        if (shards > 1) {
+            for (int i = 0; i < shards; i++) {
+                keys.add(SECKILL_STOCK_KEY + voucherId + ":" + i);
+            }
+        }
+        return keys;
+    }
+}
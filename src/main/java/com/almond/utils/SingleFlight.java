@@ -0,0 +1,78 @@
+package com.almond.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 单飞(请求合并):同一个key上并发的多次加载只真正执行一次,其余线程等待并共享结果
+ * 用于缓存失效瞬间大量线程同时未命中时,避免对数据库发起大量相同的查询
+ */
+public class SingleFlight {
+
+    //正在执行中的加载任务
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    //等待其他线程加载结果的最长时间
+    private final long timeoutMillis;
+
+    public SingleFlight(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 执行加载,同一个key同一时刻只有一个线程真正调用loader
+     * loader抛出异常时,本次所有等待者都收到该异常,且不会留下任何结果,下一次调用重新加载
+     * @param key 合并的键
+     * @param loader 加载函数
+     * @param <T> 结果类型
+     * @return 加载结果
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            //已有线程在加载,等待其结果
+            return (T) await(key, existing);
+        }
+        try {
+            T result = loader.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            //无论成功失败都移除,失败的结果不会被后续请求复用
+            inFlight.remove(key, future);
+        }
+    }
+
+    private Object await(String key, CompletableFuture<Object> future) {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("等待加载超时:" + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return 当前正在加载中的key数量
+     */
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,82 @@
+package com.almond.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * 基于Smile(二进制json)的编解码器
+ * 字段名和重复的字符串只写一次并回引,数字按二进制存储,解析不需要处理文本
+ */
+public class SmileCacheCodec implements CacheCodec {
+
+    private final ObjectMapper mapper;
+
+    public SmileCacheCodec() {
+        SmileFactory factory = new SmileFactory();
+        //列表中重复的字符串值(如类型名称、图标)也回引
+        factory.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+        //时间存为毫秒时间戳,与hutool json的表示一致,比年月日数组更紧凑
+        SimpleModule timeModule = new SimpleModule();
+        timeModule.addSerializer(LocalDateTime.class, new JsonSerializer<LocalDateTime>() {
+            @Override
+            public void serialize(LocalDateTime value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+                gen.writeNumber(value.toInstant(ZoneOffset.UTC).toEpochMilli());
+            }
+        });
+        timeModule.addDeserializer(LocalDateTime.class, new JsonDeserializer<LocalDateTime>() {
+            @Override
+            public LocalDateTime deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+                return LocalDateTime.ofInstant(Instant.ofEpochMilli(p.getLongValue()), ZoneOffset.UTC);
+            }
+        });
+        this.mapper = new ObjectMapper(factory)
+                .registerModule(timeModule)
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存编码失败", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Type type) {
+        return read(bytes, mapper.constructType(type));
+    }
+
+    @Override
+    public <T> RedisData<T> decodeEnvelope(byte[] bytes, Type dataType) {
+        return read(bytes, mapper.getTypeFactory()
+                .constructParametricType(RedisData.class, mapper.constructType(dataType)));
+    }
+
+    private <T> T read(byte[] bytes, JavaType javaType) {
+        try {
+            return mapper.readValue(bytes, javaType);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存解码失败", e);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.almond.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.almond.utils.RedisConstants.ID_WORKER_KEY;
+import static com.almond.utils.RedisConstants.ID_WORKER_TIME_KEY;
+
+/**
+ * 雪花算法id: 标记位(1) + 毫秒时间戳(40) + worker id(10) + 序列号(12),完全在本地生成,不访问网络
+ * 标记位使id大于RedisIdWorker生成的所有id(其31位秒级时间戳到2056年才会用到这一位),两种id可以存放在同一张表
+ * worker id启动时从redis租用,定时续期;续期失败超过租期后不再使用本生成器,由调用方改用RedisIdWorker
+ * 时钟回拨时沿用上一个时间戳继续分配,同一毫秒序列号用完时借用下一毫秒,都不会等待
+ */
+@Slf4j
+@Component
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    private static final long EPOCH = 1640995200000L;
+    private static final long WORKER_BITS = 10;
+    private static final long SEQUENCE_BITS = 12;
+    private static final long TIMESTAMP_BITS = 40;
+    private static final long MAX_WORKERS = 1L << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    private static final long MARKER = 1L << (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+
+    //从ARGV[4]开始依次尝试租用worker id,返回租到的id,全部被占用时返回-1
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+            "for i = 0, ARGV[5] - 1 do " +
+            "local id = (ARGV[4] + i) % ARGV[5] " +
+            "if redis.call('set', ARGV[1] .. id, ARGV[2], 'NX', 'PX', ARGV[3]) then return id end " +
+            "end " +
+            "return -1", Long.class);
+
+    //仍持有租约时续期并记录最后使用的时间戳,ARGV[2]为0时释放租约
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) ~= ARGV[1] then return 0 end " +
+            "redis.call('hset', KEYS[2], ARGV[3], ARGV[4]) " +
+            "if ARGV[2] == '0' then redis.call('del', KEYS[1]) else redis.call('pexpire', KEYS[1], ARGV[2]) end " +
+            "return 1", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //使用本生成器的key前缀
+    private final Set<String> prefixes;
+
+    private final long leaseTtlMillis;
+
+    //租约持有者标识
+    private final String instanceId = UUID.randomUUID().toString(true);
+
+    private volatile long workerId = -1;
+    //租约有效期,以发出续期命令的时间计算
+    private volatile long leaseExpireAt;
+
+    private long lastTimestamp = -1;
+    private long sequence;
+    //上一次读取到的时钟,借用下一毫秒后lastTimestamp会超前于时钟,不能用来判断回拨
+    private long lastClock = -1;
+
+    private final Counter rollbackCounter;
+    private final Counter borrowCounter;
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                                @Value("${almond.id.snowflake.prefixes:}") String prefixes,
+                                @Value("${almond.id.snowflake.lease-ttl:60s}") Duration leaseTtl) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.prefixes = new HashSet<>(Arrays.asList(StrUtil.splitToArray(prefixes, ',')));
+        this.prefixes.remove("");
+        this.leaseTtlMillis = leaseTtl.toMillis();
+        this.rollbackCounter = meterRegistry.counter("id.snowflake", "event", "clock-rollback");
+        this.borrowCounter = meterRegistry.counter("id.snowflake", "event", "sequence-borrow");
+    }
+
+    /**
+     * @return 该前缀是否配置为使用本生成器
+     */
+    public boolean supports(String keyPrefix) {
+        return prefixes.contains(keyPrefix);
+    }
+
+    /**
+     * @return 是否持有有效的worker id
+     */
+    public boolean isAvailable() {
+        return workerId >= 0 && System.currentTimeMillis() < leaseExpireAt;
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        long worker = workerId;
+        if (worker < 0) {
+            throw new IllegalStateException("未分配worker id");
+        }
+        long clock = System.currentTimeMillis() - EPOCH;
+        if (clock < lastClock) {
+            rollbackCounter.increment();
+        }
+        lastClock = clock;
+        long timestamp = clock;
+        if (timestamp < lastTimestamp) {
+            //时钟回拨或借用了后面的毫秒,沿用上一个时间戳,id仍然单调递增
+            timestamp = lastTimestamp;
+        }
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                //本毫秒的序列号用完,借用下一毫秒
+                borrowCounter.increment();
+                timestamp++;
+            }
+        } else {
+            sequence = 0;
+        }
+        if (timestamp > MAX_TIMESTAMP) {
+            throw new IllegalStateException("雪花算法时间戳溢出");
+        }
+        lastTimestamp = timestamp;
+        return MARKER | timestamp << (WORKER_BITS + SEQUENCE_BITS) | worker << SEQUENCE_BITS | sequence;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (prefixes.isEmpty()) {
+            return;
+        }
+        try {
+            acquire();
+        } catch (Exception e) {
+            //之后由定时续期重试
+            log.warn("租用worker id失败", e);
+        }
+    }
+
+    /**
+     * 定时续期,租约丢失(例如redis长时间不可用后被其他实例租走)时重新租用
+     */
+    @Scheduled(fixedDelayString = "${almond.id.snowflake.heartbeat-interval:10000}")
+    public void heartbeat() {
+        if (prefixes.isEmpty()) {
+            return;
+        }
+        try {
+            if (workerId < 0 || !renew(leaseTtlMillis)) {
+                acquire();
+            }
+        } catch (Exception e) {
+            log.warn("worker id续期失败,workerId:{}", workerId, e);
+        }
+    }
+
+    private void acquire() {
+        long start = System.currentTimeMillis();
+        Long id = stringRedisTemplate.execute(ACQUIRE_SCRIPT, Collections.emptyList(), ID_WORKER_KEY, instanceId,
+                String.valueOf(leaseTtlMillis),
+                String.valueOf(ThreadLocalRandom.current().nextLong(MAX_WORKERS)), String.valueOf(MAX_WORKERS));
+        if (id == null || id < 0) {
+            workerId = -1;
+            log.warn("没有空闲的worker id");
+            return;
+        }
+        //上一个持有者最后使用的时间戳,时钟回拨后重启也不会生成重复的id
+        Object last = stringRedisTemplate.opsForHash().get(ID_WORKER_TIME_KEY, id.toString());
+        synchronized (this) {
+            if (last != null) {
+                lastTimestamp = Math.max(lastTimestamp, Long.parseLong(last.toString()));
+            }
+            workerId = id;
+        }
+        leaseExpireAt = start + leaseTtlMillis;
+        log.info("租用worker id:{}", id);
+    }
+
+    private boolean renew(long ttlMillis) {
+        long start = System.currentTimeMillis();
+        long worker = workerId;
+        long last;
+        synchronized (this) {
+            last = lastTimestamp;
+        }
+        Long result = stringRedisTemplate.execute(RENEW_SCRIPT,
+                Arrays.asList(ID_WORKER_KEY + worker, ID_WORKER_TIME_KEY),
+                instanceId, String.valueOf(ttlMillis), String.valueOf(worker), String.valueOf(last));
+        if (result == null || result == 0) {
+            log.warn("worker id租约已丢失,workerId:{}", worker);
+            workerId = -1;
+            return false;
+        }
+        leaseExpireAt = start + ttlMillis;
+        return true;
+    }
+
+    /**
+     * 停机时释放租约
+     */
+    @PreDestroy
+    public void release() {
+        if (workerId < 0) {
+            return;
+        }
+        try {
+            renew(0);
+        } catch (Exception e) {
+            log.warn("释放worker id失败,workerId:{}", workerId, e);
+        }
+        workerId = -1;
+    }
+}
@@ -0,0 +1,92 @@
+package com.almond.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀券售罄标记,售罄后本节点直接拒绝请求,不再执行秒杀脚本
+ * seckill.lua在库存第一次扣减为0时通过SECKILL_SOLD_OUT_CHANNEL广播,各节点收到后标记;
+ * 补充库存时通过SECKILL_RESTOCK_CHANNEL广播,各节点清除标记
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry {
+
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+
+    //分片库存中已知售罄的分片,优惠券id -> 分片位掩码
+    private final ConcurrentHashMap<Long, Long> soldOutShards = new ConcurrentHashMap<>();
+
+    private final Counter rejectedCounter;
+
+    public SoldOutRegistry(MeterRegistry meterRegistry) {
+        this.rejectedCounter = meterRegistry.counter("seckill.soldout.rejected");
+    }
+
+    /**
+     * @return 是否已售罄,售罄时记录一次拒绝
+     */
+    public boolean isSoldOut(Long voucherId) {
+        if (soldOut.contains(voucherId)) {
+            rejectedCounter.increment();
+            return true;
+        }
+        return false;
+    }
+
+    public void markSoldOut(Long voucherId) {
+        soldOut.add(voucherId);
+    }
+
+    public long soldOutShardMask(Long voucherId) {
+        return soldOutShards.getOrDefault(voucherId, 0L);
+    }
+
+    public void markShardsSoldOut(Long voucherId, long mask) {
+        soldOutShards.merge(voucherId, mask, (a, b) -> a | b);
+    }
+
+    /**
+     * 清除售罄标记以及售罄分片
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        soldOutShards.remove(voucherId);
+    }
+
+    /**
+     * 处理售罄广播
+     * @param message 优惠券id
+     */
+    public void onSoldOutMessage(String message) {
+        Long voucherId = parse(message);
+        if (voucherId != null) {
+            markSoldOut(voucherId);
+        }
+    }
+
+    /**
+     * 处理补充库存广播
+     * @param message 优惠券id
+     */
+    public void onRestockMessage(String message) {
+        Long voucherId = parse(message);
+        if (voucherId != null) {
+            clear(voucherId);
+        }
+    }
+
+    private Long parse(String message) {
+        try {
+            return Long.valueOf(message);
+        } catch (NumberFormatException e) {
+            log.warn("无法解析的售罄消息:{}", message);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.almond.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把stream的N个分区分配给各实例,每个分区同一时间只由一个实例消费
+ * 实例定时在{name}.members(zset,score为心跳时间)中登记,按存活实例数计算自己应持有的分区数,
+ * 通过租约{name}.owner:{p}认领空闲分区,超出份额时释放,实例加入或退出后经过几次心跳重新均衡
+ * 释放分区时先通知消费者停止,消费者处理完手头的消息、调用release删除租约之前继续续期,避免两个实例同时消费一个分区
+ * 租约的值是每次认领生成的token(实例id + 序号),同一实例重新认领后,旧消费者的release不会删除新的租约
+ */
+@Slf4j
+public class StreamPartitionAssigner {
+
+    public interface Listener {
+        /**
+         * 本实例获得分区,开始消费
+         * @param token 本次认领的租约token,消费者停止后用它释放租约
+         */
+        void onAssigned(int partition, String token);
+
+        /**
+         * 本实例失去分区(超出份额或租约丢失),停止消费
+         */
+        void onRevoked(int partition);
+    }
+
+    //仍持有租约时续期
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) end " +
+            "return 0", Long.class);
+
+    //仍持有租约时删除
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end " +
+            "return 0", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String name;
+    private final int partitions;
+    private final long leaseMillis;
+    private final String instanceId;
+    private final Listener listener;
+
+    //本实例持有的分区 -> 租约token
+    private final TreeMap<Integer, String> owned = new TreeMap<>();
+    //已通知停止、消费者还没有退出的分区 -> 租约token,消费者调用release之前继续续期
+    private final Map<Integer, String> revoked = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    public StreamPartitionAssigner(StringRedisTemplate stringRedisTemplate, String name, int partitions,
+                                   long leaseMillis, String instanceId, Listener listener) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.name = name;
+        this.partitions = partitions;
+        this.leaseMillis = leaseMillis;
+        this.instanceId = instanceId;
+        this.listener = listener;
+    }
+
+    /**
+     * 心跳:登记本实例,续期已持有的分区,按份额释放或认领分区
+     */
+    public synchronized void rebalance() {
+        long now = System.currentTimeMillis();
+        String membersKey = name + ".members";
+        stringRedisTemplate.opsForZSet().add(membersKey, instanceId, now);
+        stringRedisTemplate.opsForZSet().removeRangeByScore(membersKey, 0, now - leaseMillis);
+        Set<String> members = stringRedisTemplate.opsForZSet().range(membersKey, 0, -1);
+        List<String> live = members == null ? new ArrayList<>() : new ArrayList<>(members);
+        Collections.sort(live);
+        int index = Math.max(live.indexOf(instanceId), 0);
+        int size = Math.max(live.size(), 1);
+        int share = partitions / size + (index < partitions % size ? 1 : 0);
+
+        //续期,租约已丢失的分区停止消费
+        for (Map.Entry<Integer, String> entry : new ArrayList<>(owned.entrySet())) {
+            int partition = entry.getKey();
+            if (!renew(partition, entry.getValue())) {
+                log.warn("{}分区{}的租约已丢失", name, partition);
+                revoke(partition, false);
+            }
+        }
+        //正在停止的消费者可能还在处理最后一批消息,租约丢失时由消费者自己检查到后退出
+        for (Map.Entry<Integer, String> entry : revoked.entrySet()) {
+            if (!renew(entry.getKey(), entry.getValue())) {
+                log.warn("{}分区{}的租约在消费者退出前丢失", name, entry.getKey());
+                revoked.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        //超出份额,从编号大的分区开始释放
+        while (owned.size() > share) {
+            revoke(owned.lastKey(), true);
+        }
+        //份额不足,从本实例的序号开始错开认领,减少各实例争抢同一分区
+        for (int i = 0; i < partitions && owned.size() < share; i++) {
+            int partition = (index * partitions / size + i) % partitions;
+            if (owned.containsKey(partition) || revoked.containsKey(partition)) {
+                continue;
+            }
+            String token = instanceId + ":" + generation.incrementAndGet();
+            Boolean acquired = stringRedisTemplate.opsForValue().setIfAbsent(ownerKey(partition), token,
+                    leaseMillis, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(acquired)) {
+                owned.put(partition, token);
+                log.info("{}分区{}分配给本实例", name, partition);
+                listener.onAssigned(partition, token);
+            }
+        }
+    }
+
+    /**
+     * 消费者停止后删除租约,其他实例可以立即认领;租约已被重新认领(token不同)时不删除
+     * @param token onAssigned收到的租约token
+     */
+    public void release(int partition, String token) {
+        revoked.remove(partition, token);
+        stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ownerKey(partition)), token);
+    }
+
+    /**
+     * 消费者每批处理前检查,租约已过期或被其他实例认领时不再处理
+     * @return 该分区的租约是否仍是这个token
+     */
+    public boolean holds(int partition, String token) {
+        return token != null && token.equals(stringRedisTemplate.opsForValue().get(ownerKey(partition)));
+    }
+
+    /**
+     * 停机:停止全部分区的消费并退出成员列表
+     */
+    public synchronized void leave() {
+        for (Integer partition : new ArrayList<>(owned.keySet())) {
+            revoke(partition, true);
+        }
+        stringRedisTemplate.opsForZSet().remove(name + ".members", instanceId);
+    }
+
+    public synchronized Set<Integer> getOwned() {
+        return new TreeSet<>(owned.keySet());
+    }
+
+    private boolean renew(int partition, String token) {
+        Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(ownerKey(partition)),
+                token, String.valueOf(leaseMillis));
+        return renewed != null && renewed != 0;
+    }
+
+    /**
+     * @param leaseHeld 租约仍由本实例持有,消费者退出之前继续续期
+     */
+    private void revoke(int partition, boolean leaseHeld) {
+        String token = owned.remove(partition);
+        if (leaseHeld && token != null) {
+            revoked.put(partition, token);
+        }
+        log.info("{}分区{}不再由本实例消费", name, partition);
+        listener.onRevoked(partition);
+    }
+
+    private String ownerKey(int partition) {
+        return name + ".owner:" + partition;
+    }
+}
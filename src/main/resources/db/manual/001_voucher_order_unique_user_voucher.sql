@@ -0,0 +1,36 @@
+-- 手动执行的脚本:项目没有引入数据库迁移工具,部署新版本之前在数据库中按顺序执行一次
+-- 一人一单由唯一索引保证,订单写入使用INSERT ... ON DUPLICATE KEY UPDATE,重复投递的消息不会产生重复订单
+-- 添加唯一索引前需要清理历史上的重复订单:每个(user_id, voucher_id)只保留id最小的一条,
+-- 其余的先备份到tb_voucher_order_dup_archive,再把删除的数量退回各秒杀券的库存
+-- 退回的库存只加到数据库,进行中的秒杀由库存对账(SeckillReconciler)补到redis
+
+-- 0.先确认重复订单的数量,为0时可以直接执行第3步
+SELECT o1.`voucher_id`, COUNT(*) AS duplicates
+FROM `tb_voucher_order` o1
+WHERE EXISTS (SELECT 1 FROM `tb_voucher_order` o2
+              WHERE o2.`user_id` = o1.`user_id` AND o2.`voucher_id` = o1.`voucher_id` AND o2.`id` < o1.`id`)
+GROUP BY o1.`voucher_id`;
+
+-- 1.备份表,已存在时建表失败,说明脚本已经执行过,不要重复执行第2步(会重复退回库存)
+CREATE TABLE `tb_voucher_order_dup_archive` LIKE `tb_voucher_order`;
+
+-- 2.备份、退回库存、删除在同一个事务中完成
+START TRANSACTION;
+
+INSERT INTO `tb_voucher_order_dup_archive`
+SELECT o1.* FROM `tb_voucher_order` o1
+WHERE EXISTS (SELECT 1 FROM `tb_voucher_order` o2
+              WHERE o2.`user_id` = o1.`user_id` AND o2.`voucher_id` = o1.`voucher_id` AND o2.`id` < o1.`id`);
+
+UPDATE `tb_seckill_voucher` v
+JOIN (SELECT `voucher_id`, COUNT(*) AS cnt FROM `tb_voucher_order_dup_archive` GROUP BY `voucher_id`) d
+  ON v.`voucher_id` = d.`voucher_id`
+SET v.`stock` = v.`stock` + d.cnt;
+
+DELETE o FROM `tb_voucher_order` o
+JOIN `tb_voucher_order_dup_archive` a ON o.`id` = a.`id`;
+
+COMMIT;
+
+-- 3.添加唯一索引
+ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
@@ -0,0 +1,3 @@
+-- 手动执行的脚本:在001之后执行
+-- 秒杀库存对账按优惠券统计订单数,以及从订单补回redis中的购买记录
+ALTER TABLE `tb_voucher_order` ADD INDEX `idx_voucher_id`(`voucher_id`) USING BTREE;
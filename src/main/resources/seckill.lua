@@ -1,27 +1,102 @@
+-- 脚本读取了服务器时间,按命令复制(redis 5以上默认如此)
+redis.replicate_commands()
 --1.获取优惠券id
 local voucherId = ARGV[1]
 --2. 用户id,判断用户是否多次下单
 local userId = ARGV[2]
 -- 获取订单id
 local orderId = ARGV[3]
+-- 用户哈希,分片库存时决定优先访问的分片
+local userHash = tonumber(ARGV[4] or '0')
+-- 调用方已知售罄的分片(位掩码),不再访问
+local skipMask = tonumber(ARGV[5] or '0')
+-- 已购买用户的记录方式 set:集合 bitmap:按用户id分段的位图
+local bitmapMode = ARGV[6] == 'bitmap'
+-- 订单消息写入的stream,分区模式下为用户所在的stream.orders.{n}
+local orderStream = ARGV[7] or 'stream.orders'
 
 --3.拼接指定优惠券库存量的key
 local stockKey = 'seckill:stock:' .. voucherId
+-- 分片数,不存在表示不分片
+local shardsKey = 'seckill:shards:' .. voucherId
 --4.拼接指定优惠券购买用户的key(一对多)
 local userKey = 'seckill:order:' .. voucherId
+-- 位图模式每段2^20位(128KB),用户id为自增id时100万用户只占用128KB
+local uid = tonumber(userId)
+local buyerKey = 'seckill:buyers:' .. voucherId .. ':' .. math.floor(uid / 1048576)
+local buyerOffset = uid % 1048576
+-- 秒杀时间窗口,不存在表示不限制
+local metaKey = 'seckill:meta:' .. voucherId
 
 --5.业务
-if(tonumber(redis.call('get',stockKey))<=0) then
-    -- 库存不足,返回1
-    return 1
+local meta = redis.call('hmget',metaKey,'begin','end')
+if(meta[1]) then
+    -- 使用redis服务器时间,各节点时钟不一致也不影响判断
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(meta[1])) then
+        -- 秒杀尚未开始,返回3
+        return 3
+    end
+    if(now > tonumber(meta[2])) then
+        -- 秒杀已经结束,返回4
+        return 4
+    end
 end
-if(redis.call('sismember',userKey,userId)==1) then
+-- 两种方式都检查,切换记录方式后已购买的用户仍不能重复购买
+if(redis.call('sismember',userKey,userId)==1 or redis.call('getbit',buyerKey,buyerOffset)==1) then
     -- 不能重复购买,返回2
     return 2
 end
+local shards = tonumber(redis.call('get',shardsKey) or '1')
+-- 本次发现已售罄的分片,返回值的低3位是结果码,其余位是售罄分片的位掩码
+local drained = 0
+local served = -1
+for i = 0, shards - 1 do
+    -- 从用户对应的分片开始,依次尝试其他分片
+    local shard = (userHash + i) % shards
+    local shardBit = 2 ^ shard
+    if(bit.band(skipMask, shardBit) == 0) then
+        local key = stockKey
+        if(shards > 1) then
+            key = stockKey .. ':' .. shard
+        end
+        local stock = tonumber(redis.call('get',key) or '0')
+        if(stock > 0) then
+            redis.call('incrby',key,-1)
+            if(stock == 1) then
+                drained = bit.bor(drained, shardBit)
+            end
+            served = shard
+            break
+        end
+        drained = bit.bor(drained, shardBit)
+    end
+end
+if(served < 0) then
+    -- 库存不足,返回1
+    return 1 + drained * 8
+end
+-- 本次扣减后全部分片为0时广播售罄,各节点不再执行本脚本
+if(bit.band(drained, 2 ^ served) ~= 0) then
+    local left = 0
+    for shard = 0, shards - 1 do
+        if(shards > 1) then
+            left = left + tonumber(redis.call('get',stockKey .. ':' .. shard) or '0')
+        else
+            left = left + tonumber(redis.call('get',stockKey) or '0')
+        end
+    end
+    if(left <= 0) then
+        redis.call('publish','seckill:soldout',voucherId)
+    end
+end
 --正常创建订单返回0
-redis.call('incrby',stockKey,-1)
-redis.call('sadd',userKey,userId)
+if(bitmapMode) then
+    redis.call('setbit',buyerKey,buyerOffset,1)
+else
+    redis.call('sadd',userKey,userId)
+end
 -- 在队列中放入订单消息,参数与订单类VoucherOrder对应
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
-return 0
\ No newline at end of file
+redis.call('xadd',orderStream,'*','userId',userId,'voucherId',voucherId,'id',orderId)
+return drained * 8
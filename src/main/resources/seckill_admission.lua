@@ -0,0 +1,39 @@
+-- 全局准入:每个时间窗口内放行的秒杀请求数不超过剩余库存的multiple倍
+-- 节点一次申请一批名额,在本地逐个使用
+-- ARGV[1]:优惠券id ARGV[2]:申请的数量 ARGV[3]:倍数 ARGV[4]:窗口长度(毫秒) ARGV[5]:每个窗口至少放行的数量
+-- 返回实际得到的名额,本窗口名额已用完时返回负数,绝对值为到下一个窗口的毫秒数
+-- 脚本读取了服务器时间,按命令复制
+redis.replicate_commands()
+local voucherId = ARGV[1]
+local want = tonumber(ARGV[2])
+local multiple = tonumber(ARGV[3])
+local window = tonumber(ARGV[4])
+local minPermits = tonumber(ARGV[5])
+
+-- 剩余库存,分片时为各分片之和
+local stockKey = 'seckill:stock:' .. voucherId
+local shards = tonumber(redis.call('get','seckill:shards:' .. voucherId) or '1')
+local stock = 0
+if(shards > 1) then
+    for shard = 0, shards - 1 do
+        stock = stock + tonumber(redis.call('get',stockKey .. ':' .. shard) or '0')
+    end
+else
+    stock = tonumber(redis.call('get',stockKey) or '0')
+end
+
+-- 使用redis服务器时间划分窗口,各节点时钟不一致也不影响
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local admitKey = 'seckill:admit:' .. voucherId .. ':' .. math.floor(now / window)
+
+-- 库存为0时仍放行少量请求,由秒杀脚本返回库存不足并广播售罄
+local limit = math.max(stock * multiple, minPermits)
+local used = tonumber(redis.call('get',admitKey) or '0')
+local grant = math.min(want, limit - used)
+if(grant <= 0) then
+    return -(window - now % window)
+end
+redis.call('incrby',admitKey,grant)
+redis.call('pexpire',admitKey,window * 2)
+return grant
@@ -0,0 +1,40 @@
+-- 租约模式下单:库存已在节点本地扣减,这里只判断一人一单并写入订单消息
+-- 脚本读取了服务器时间,按命令复制(redis 5以上默认如此)
+redis.replicate_commands()
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local orderId = ARGV[3]
+local bitmapMode = ARGV[4] == 'bitmap'
+-- 订单消息写入的stream,分区模式下为用户所在的stream.orders.{n}
+local orderStream = ARGV[5] or 'stream.orders'
+
+local userKey = 'seckill:order:' .. voucherId
+-- 已购买用户的位图分段,与seckill.lua相同
+local uid = tonumber(userId)
+local buyerKey = 'seckill:buyers:' .. voucherId .. ':' .. math.floor(uid / 1048576)
+local buyerOffset = uid % 1048576
+local metaKey = 'seckill:meta:' .. voucherId
+
+-- 秒杀时间窗口,与seckill.lua相同
+local meta = redis.call('hmget',metaKey,'begin','end')
+if(meta[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(meta[1])) then
+        return 3
+    end
+    if(now > tonumber(meta[2])) then
+        return 4
+    end
+end
+if(redis.call('sismember',userKey,userId)==1 or redis.call('getbit',buyerKey,buyerOffset)==1) then
+    -- 不能重复购买,返回2
+    return 2
+end
+if(bitmapMode) then
+    redis.call('setbit',buyerKey,buyerOffset,1)
+else
+    redis.call('sadd',userKey,userId)
+end
+redis.call('xadd',orderStream,'*','userId',userId,'voucherId',voucherId,'id',orderId)
+return 0
@@ -0,0 +1,37 @@
+-- 库存租约:从redis库存中一次预留一批,由节点在本地扣减
+-- ARGV[1]:优惠券id ARGV[2]:大于0表示预留的数量,小于0表示归还的数量
+local voucherId = ARGV[1]
+local amount = tonumber(ARGV[2])
+
+local stockKey = 'seckill:stock:' .. voucherId
+-- 分片数,不存在表示不分片
+local shards = tonumber(redis.call('get','seckill:shards:' .. voucherId) or '1')
+
+local function shardKey(shard)
+    if(shards > 1) then
+        return stockKey .. ':' .. shard
+    end
+    return stockKey
+end
+
+if(amount < 0) then
+    -- 归还到第一个分片,返回归还的数量
+    redis.call('incrby',shardKey(0),-amount)
+    return -amount
+end
+
+-- 依次从各分片预留,库存不足时有多少预留多少,返回实际预留的数量
+local got = 0
+for i = 0, shards - 1 do
+    local key = shardKey(i)
+    local stock = tonumber(redis.call('get',key) or '0')
+    if(stock > 0) then
+        local take = math.min(stock, amount - got)
+        redis.call('incrby',key,-take)
+        got = got + take
+    end
+    if(got >= amount) then
+        break
+    end
+end
+return got
@@ -1,8 +1,17 @@
 package com.almond;
 
+import com.almond.entity.SeckillVoucher;
 import com.almond.entity.Shop;
+import com.almond.entity.VoucherOrder;
+import com.almond.service.ISeckillVoucherService;
+import com.almond.service.IVoucherOrderService;
 import com.almond.service.impl.ShopServiceImpl;
+import com.almond.utils.CacheClient;
+import com.almond.utils.IdGenerator;
 import com.almond.utils.RedisIdWorker;
+import com.almond.utils.SnowflakeIdGenerator;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,12 +22,20 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.almond.utils.RedisConstants.SHOP_GEO_KEY;
@@ -33,9 +50,21 @@ public class HmDianPingApplicationTests {
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     @Test
     public void testShopCacheRebuild(){
         //预处理商店数据,全部放入redis
@@ -48,21 +77,42 @@ public class HmDianPingApplicationTests {
 
     @Test
     public void testId() throws InterruptedException {
-        CountDownLatch countDownLatch = new CountDownLatch(300);
-        Runnable task = () ->{
-            for (int i = 0; i < 100; i++) {
-                long order = redisIdWorker.nextId("order");
-                System.out.println(order);
+        //每个id都INCR一次、号段模式与本地雪花算法的吞吐量对比
+        RedisIdWorker perCallWorker = new RedisIdWorker(stringRedisTemplate, 1);
+        RedisIdWorker segmentWorker = new RedisIdWorker(stringRedisTemplate, 1000);
+        long perCall = benchmarkIds(perCallWorker);
+        long segment = benchmarkIds(segmentWorker);
+        long snowflake = benchmarkIds(snowflakeIdGenerator);
+        perCallWorker.shutdown();
+        segmentWorker.shutdown();
+        System.out.println("INCR:" + perCall + " ids/s, 号段:" + segment + " ids/s, 雪花:" + snowflake + " ids/s");
+    }
+
+    /**
+     * 300个任务各生成100个id,先预热一轮,再检查id不重复、同一线程内单调递增
+     * @return 每秒生成的id数
+     */
+    private long benchmarkIds(IdGenerator worker) throws InterruptedException {
+        int tasks = 300, idsPerTask = 100;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        Runnable task = () -> {
+            long last = 0;
+            for (int i = 0; i < idsPerTask; i++) {
+                long id = worker.nextId("bench");
+                if (id <= last) {
+                    outOfOrder.incrementAndGet();
+                }
+                last = id;
+                ids.add(id);
             }
-            countDownLatch.countDown();
         };
-        long start = System.currentTimeMillis();
-        for (int i = 0; i < 300; i++) {
-            es.submit(task);
-        }
-        countDownLatch.await();
-        long end = System.currentTimeMillis();
-        System.out.println("time="+(end - start));
+        runConcurrently(tasks, task);
+        ids.clear();
+        long time = runConcurrently(tasks, task);
+        Assert.assertEquals(tasks * idsPerTask, ids.size());
+        Assert.assertEquals(0, outOfOrder.get());
+        return tasks * idsPerTask * 1000L / Math.max(time, 1);
     }
 
     //导入商铺地理坐标
@@ -88,4 +138,109 @@ public class HmDianPingApplicationTests {
             stringRedisTemplate.opsForGeo().add(key, geoLocations);
         }
     }
+
+    //缓存失效风暴:大量线程同时未命中同一个key,对比合并前后实际查询数据库的次数
+    @Test
+    public void testCacheMissStorm() throws InterruptedException {
+        int threads = 200;
+        String keyPrefix = "cache:storm:";
+        Long id = 1L;
+        AtomicInteger dbCalls = new AtomicInteger();
+        Function<Long, Shop> dbFallback = arg -> {
+            dbCalls.incrementAndGet();
+            try {
+                Thread.sleep(50); //模拟数据库查询耗时
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return shopService.getById(arg);
+        };
+        //合并前:每个未命中的线程都各自查询数据库
+        stringRedisTemplate.delete(keyPrefix + id);
+        runConcurrently(threads, () -> {
+            if (stringRedisTemplate.opsForValue().get(keyPrefix + id) == null) {
+                Shop shop = dbFallback.apply(id);
+                cacheClient.set(keyPrefix + id, shop, 1L, TimeUnit.MINUTES);
+            }
+        });
+        Assert.assertTrue(dbCalls.get() > 1);
+        //合并后:同一节点只有一个线程查询数据库,所有线程拿到同一个结果
+        dbCalls.set(0);
+        cacheClient.delete(keyPrefix + id);
+        Queue<Shop> results = new ConcurrentLinkedQueue<>();
+        runConcurrently(threads, () -> results.add(cacheClient.queryWithPassThrough(
+                keyPrefix, id, Shop.class, dbFallback, 1L, TimeUnit.MINUTES)));
+        cacheClient.delete(keyPrefix + id);
+        Assert.assertEquals(1, dbCalls.get());
+        Assert.assertEquals(threads, results.size());
+        for (Shop shop : results) {
+            Assert.assertEquals(id, shop.getId());
+        }
+    }
+
+    //订单消息重复投递:多个线程同时重放同一批订单,唯一索引保证订单和库存扣减都只生效一次
+    @Test
+    public void testOrderReplayIdempotent() throws InterruptedException {
+        int orders = 1000;
+        int replays = 5;
+        int batchSize = 100;
+        long voucherId = redisIdWorker.nextId("test:voucher");
+        seckillVoucherService.save(new SeckillVoucher().setVoucherId(voucherId).setStock(orders)
+                .setBeginTime(LocalDateTime.now()).setEndTime(LocalDateTime.now().plusHours(1)));
+        List<VoucherOrder> batch = new ArrayList<>(orders);
+        for (long userId = 1; userId <= orders; userId++) {
+            batch.add(new VoucherOrder().setId(redisIdWorker.nextId("order"))
+                    .setUserId(userId).setVoucherId(voucherId));
+        }
+        AtomicInteger failures = new AtomicInteger();
+        //批量写入,每个线程完整重放一遍
+        long batchTime = runConcurrently(replays, () -> {
+            for (int i = 0; i < orders; i += batchSize) {
+                try {
+                    voucherOrderService.createVoucherOrders(voucherId, batch.subList(i, i + batchSize));
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+        //逐条写入,全部是重复订单
+        long singleTime = runConcurrently(replays, () -> batch.forEach(order -> {
+            try {
+                voucherOrderService.createVoucherOrder(order);
+            } catch (Exception e) {
+                failures.incrementAndGet();
+            }
+        }));
+        int count = voucherOrderService.query().eq("voucher_id", voucherId).count();
+        int stock = seckillVoucherService.getById(voucherId).getStock();
+        System.out.println("orders=" + orders + ", replays=" + replays + ", batchTime=" + batchTime
+                + ", singleTime=" + singleTime + ", failures=" + failures.get()
+                + ", count=" + count + ", stock=" + stock);
+        voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+        seckillVoucherService.removeById(voucherId);
+        Assert.assertEquals(orders, count);
+        Assert.assertEquals(0, stock);
+    }
+
+    //所有线程同时开始执行task,返回全部完成的耗时
+    private long runConcurrently(int threads, Runnable task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                try {
+                    start.await();
+                    task.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long begin = System.currentTimeMillis();
+        start.countDown();
+        done.await();
+        return System.currentTimeMillis() - begin;
+    }
 }
@@ -0,0 +1,98 @@
+package com.almond;
+
+import com.almond.entity.SeckillVoucher;
+import com.almond.entity.VoucherOrder;
+import com.almond.service.ISeckillVoucherService;
+import com.almond.service.IVoucherOrderService;
+import com.almond.utils.RedisIdWorker;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.almond.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.almond.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * 订单stream从不分区切换为4个分区:切换前写入stream.orders的订单(包括旧消费者已读取未确认的)仍然全部落库
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+        "almond.seckill.order.partitions=4",
+        "almond.seckill.order.drain-interval=1000",
+        "almond.seckill.order.claim-interval=1000",
+        "almond.seckill.order.claim-idle=1s"
+})
+public class OrderStreamDrainTests {
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Test
+    public void testDrainLegacyStreamAfterPartitioning() throws InterruptedException {
+        int orders = 200;
+        int unacked = 20;
+        long voucherId = redisIdWorker.nextId("test:voucher");
+        seckillVoucherService.save(new SeckillVoucher().setVoucherId(voucherId).setStock(orders)
+                .setBeginTime(LocalDateTime.now()).setEndTime(LocalDateTime.now().plusHours(1)));
+        try {
+            stringRedisTemplate.opsForStream().createGroup(SECKILL_ORDER_STREAM, ReadOffset.from("0"), SECKILL_ORDER_GROUP);
+        } catch (Exception e) {
+            //消费者组已存在
+        }
+        //切换前的实例按不分区写入stream.orders
+        for (long userId = 1; userId <= orders; userId++) {
+            Map<String, String> order = new LinkedHashMap<>();
+            order.put("userId", String.valueOf(userId));
+            order.put("voucherId", String.valueOf(voucherId));
+            order.put("id", String.valueOf(redisIdWorker.nextId("order")));
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_STREAM, order);
+        }
+        //已经停止的旧消费者读取了一部分消息,没有确认
+        stringRedisTemplate.opsForStream().read(Consumer.from(SECKILL_ORDER_GROUP, "old-c0"),
+                StreamReadOptions.empty().count(unacked),
+                StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed()));
+
+        int count = 0;
+        long pending = -1;
+        long deadline = System.currentTimeMillis() + 60000;
+        while (System.currentTimeMillis() < deadline) {
+            count = voucherOrderService.query().eq("voucher_id", voucherId).count();
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+            pending = summary == null ? 0 : summary.getTotalPendingMessages();
+            if (count == orders && pending == 0) {
+                break;
+            }
+            Thread.sleep(500);
+        }
+        int stock = seckillVoucherService.getById(voucherId).getStock();
+        voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+        seckillVoucherService.removeById(voucherId);
+        Assert.assertEquals(orders, count);
+        Assert.assertEquals(0, stock);
+        Assert.assertEquals(0, pending);
+    }
+}
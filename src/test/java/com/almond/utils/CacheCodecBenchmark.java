@@ -0,0 +1,134 @@
+package com.almond.utils;
+
+import cn.hutool.core.lang.ParameterizedTypeImpl;
+import cn.hutool.json.JSONUtil;
+import com.almond.entity.Shop;
+import com.almond.entity.ShopType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码对比:原先hutool JSONUtil的解析方式 vs JsonCacheCodec vs SmileCacheCodec
+ * 运行main方法即可,不需要启动spring、redis和数据库
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheCodecBenchmark {
+
+    private static final Type SHOP_TYPE_LIST = new ParameterizedTypeImpl(new Type[]{ShopType.class}, null, List.class);
+
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+    private final CacheCodec smileCodec = new SmileCacheCodec();
+
+    private RedisData<Object> shopEnvelope;
+    private List<ShopType> shopTypes;
+
+    private String shopEnvelopeJson;
+    private byte[] shopEnvelopeJsonBytes;
+    private byte[] shopEnvelopeSmileBytes;
+    private String shopTypesJson;
+    private byte[] shopTypesJsonBytes;
+    private byte[] shopTypesSmileBytes;
+
+    @Setup
+    public void setup() {
+        Shop shop = new Shop()
+                .setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now()).setUpdateTime(LocalDateTime.now());
+        shopEnvelope = new RedisData<>();
+        shopEnvelope.setData(shop);
+        shopEnvelope.setExpireTime(LocalDateTime.now().plusMinutes(30));
+
+        shopTypes = new ArrayList<>();
+        String[] names = {"美食", "KTV", "丽人·美发", "健身运动", "按摩·足疗", "美容SPA", "亲子游乐", "酒吧", "轰趴馆", "美睫·美甲"};
+        for (int i = 0; i < names.length; i++) {
+            shopTypes.add(new ShopType().setId((long) i + 1).setName(names[i])
+                    .setIcon("/types/type" + (i + 1) + ".png").setSort(i + 1));
+        }
+
+        shopEnvelopeJson = JSONUtil.toJsonStr(shopEnvelope);
+        shopEnvelopeJsonBytes = jsonCodec.encode(shopEnvelope);
+        shopEnvelopeSmileBytes = smileCodec.encode(shopEnvelope);
+        shopTypesJson = JSONUtil.toJsonStr(shopTypes);
+        shopTypesJsonBytes = jsonCodec.encode(shopTypes);
+        shopTypesSmileBytes = smileCodec.encode(shopTypes);
+        System.out.println("shop envelope bytes: json=" + shopEnvelopeJsonBytes.length
+                + ", smile=" + shopEnvelopeSmileBytes.length);
+        System.out.println("shop type list bytes: json=" + shopTypesJsonBytes.length
+                + ", smile=" + shopTypesSmileBytes.length);
+    }
+
+    //原先queryByIdWithLogicalExpireTime的解析方式:解析RedisData,data再转json,再解析为Shop
+    @Benchmark
+    public Shop decodeShopHutoolLegacy() {
+        RedisData<?> redisData = JSONUtil.toBean(shopEnvelopeJson, RedisData.class);
+        String dataJson = JSONUtil.toJsonStr(redisData.getData());
+        return JSONUtil.toBean(dataJson, Shop.class);
+    }
+
+    @Benchmark
+    public RedisData<Shop> decodeShopJsonCodec() {
+        return jsonCodec.decodeEnvelope(shopEnvelopeJsonBytes, Shop.class);
+    }
+
+    @Benchmark
+    public RedisData<Shop> decodeShopSmileCodec() {
+        return smileCodec.decodeEnvelope(shopEnvelopeSmileBytes, Shop.class);
+    }
+
+    @Benchmark
+    public String encodeShopHutool() {
+        return JSONUtil.toJsonStr(shopEnvelope);
+    }
+
+    @Benchmark
+    public byte[] encodeShopSmileCodec() {
+        return smileCodec.encode(shopEnvelope);
+    }
+
+    //ShopTypeServiceImpl当前的解析方式
+    @Benchmark
+    public List<ShopType> decodeShopTypesHutool() {
+        return JSONUtil.toList(shopTypesJson, ShopType.class);
+    }
+
+    @Benchmark
+    public List<ShopType> decodeShopTypesSmileCodec() {
+        return smileCodec.decode(shopTypesSmileBytes, SHOP_TYPE_LIST);
+    }
+
+    @Benchmark
+    public String encodeShopTypesHutool() {
+        return JSONUtil.toJsonStr(shopTypes);
+    }
+
+    @Benchmark
+    public byte[] encodeShopTypesSmileCodec() {
+        return smileCodec.encode(shopTypes);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}